@@ -0,0 +1,116 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how building the list of nodes for a ping round scales with the number of members, with the
+ * {@link DynamicNodeList} of {@link ZkUnicastHostsProvider}. Addresses are resolved up front, just like the provider's
+ * address cache does in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HostListBenchmark {
+	@Param({ "10", "100", "1000", "10000" })
+	public int					members;
+	@Param({ "all", "master_eligible", "ring" })
+	public String				targets;
+	@Param({ "", "zone-0" })
+	public String				zone;
+	private final ESLogger		logger	= Loggers.getLogger(HostListBenchmark.class);
+	private final List<String>	names	= new ArrayList<String>();
+	private DynamicNodeList		nodes;
+	private String				myAddress;
+	private long				generation;
+	private int					flapped;
+
+	@Setup(Level.Trial)
+	public void createMembers() {
+		final PingTargetSelector.Mode mode = PingTargetSelector.Mode.parse(this.targets);
+		final PingTargetSelector selector = new PingTargetSelector(mode, mode == PingTargetSelector.Mode.RING ? 4 : 5, this.zone, 0,
+				new Random(0));
+		final Executor direct = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		};
+		final RefreshingCache<String, List<TransportAddress>> addressCache = new RefreshingCache<String, List<TransportAddress>>(
+				direct, Long.MAX_VALUE, this.logger) {
+			@Override
+			protected List<TransportAddress> load(final String address) {
+				final int split = address.lastIndexOf(':');
+				return Collections.<TransportAddress> singletonList(new InetSocketTransportAddress(address.substring(0, split),
+						Integer.parseInt(address.substring(split + 1))));
+			}
+		};
+		this.nodes = new DynamicNodeList(selector, addressCache, this.logger);
+		for (int i = 0; i < this.members; i++) {
+			this.names.add("member-" + i);
+			this.nodes.memberAdded("member-" + i, createPayload(i));
+		}
+		this.myAddress = createPayload(0).getAddresses().get(0);
+		this.nodes.setGeneration(++this.generation);
+	}
+
+	/**
+	 * Builds the list of nodes to ping after the membership has changed.
+	 */
+	@Benchmark
+	public List<DiscoveryNode> buildNodes() {
+		this.nodes.setGeneration(++this.generation);
+		return this.nodes.build(this.myAddress, "member-0");
+	}
+
+	/**
+	 * Returns the list of nodes to ping while the membership is unchanged, which is what most ping rounds do.
+	 */
+	@Benchmark
+	public List<DiscoveryNode> reuseNodes() {
+		return this.nodes.build(this.myAddress, "member-0");
+	}
+
+	/**
+	 * A member leaves and joins again, which moves it on the hash ring in ring mode.
+	 */
+	@Benchmark
+	public void leaveAndJoin() {
+		final int i = this.flapped++ % this.members;
+		final MemberPayload payload = createPayload(i);
+		this.nodes.memberRemoved(this.names.get(i), payload);
+		this.nodes.memberAdded(this.names.get(i), payload);
+	}
+
+	private static MemberPayload createPayload(final int i) {
+		final String address = "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ":9300";
+		return MemberPayload.create(Collections.singletonList(address), "node-" + i, i % 10 == 0 ? MemberPayload.ROLE_MASTER
+				: MemberPayload.ROLE_DATA, "zone-" + i % 3, 0);
+	}
+}
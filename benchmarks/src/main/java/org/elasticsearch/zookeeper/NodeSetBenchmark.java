@@ -0,0 +1,168 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.elasticsearch.zookeeper.harness.EmbeddedZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how reading and diffing the membership of a {@link NodeSet} scales with the number of members, against a
+ * ZooKeeper server running in the benchmark JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeSetBenchmark {
+	private static final String		group		= "/benchmark";
+	@Param({ "10", "100", "1000", "10000" })
+	public int						members;
+	@Param({ "true", "false" })
+	public boolean					pipelined;
+	private final ChangeListener	listener	= new ChangeListener();
+	private EmbeddedZooKeeper		server;
+	private ZKConnector				zoo;
+	private WatchDispatcher			dispatcher;
+	private NodeSet<MemberPayload>	nodes;
+	private int						flapped;
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception {
+		this.server = new EmbeddedZooKeeper();
+		this.server.start();
+		final ZKConnector writer = new ZKConnector(this.server.getConnectString());
+		try {
+			writer.getZk().create(group, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			createMembers(writer, group, this.members);
+		} finally {
+			writer.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() {
+		this.server.close();
+	}
+
+	/**
+	 * A new session is used for every iteration, as the client keeps the watches of all sets read by
+	 * {@link NodeSetBenchmark#fullRead()} until they fire or the session is closed. The sets are closed, so these watches
+	 * don't make {@link NodeSetBenchmark#leaveAndJoin()} read the group again.
+	 */
+	@Setup(Level.Iteration)
+	public void connect() throws Exception {
+		this.zoo = new ZKConnector(this.server.getConnectString());
+		this.dispatcher = new WatchDispatcher(0, 0);
+		this.nodes = new NodeSet<MemberPayload>(this.zoo, group, MemberPayload.CODEC, this.pipelined, this.dispatcher);
+		this.nodes.sync();
+		this.nodes.addListener(this.listener);
+	}
+
+	@TearDown(Level.Iteration)
+	public void disconnect() throws InterruptedException {
+		this.dispatcher.close();
+		this.zoo.close();
+	}
+
+	/**
+	 * Reads all members into a new set, as done by every node when it starts or when its session has expired.
+	 */
+	@Benchmark
+	public int fullRead() throws KeeperException, InterruptedException {
+		final NodeSet<MemberPayload> set = new NodeSet<MemberPayload>(this.zoo, group, MemberPayload.CODEC, this.pipelined, null);
+		try {
+			set.sync();
+			return set.snapshot().size();
+		} finally {
+			set.close();
+		}
+	}
+
+	/**
+	 * A single member leaves and joins again, measured until the set has applied both changes. Each change lists the whole
+	 * group and diffs it against the current snapshot.
+	 */
+	@Benchmark
+	public long leaveAndJoin() throws KeeperException, InterruptedException {
+		final String path = group + "/member-" + this.flapped++ % this.members;
+		final byte[] data = this.zoo.getZk().getData(path, false, null);
+
+		this.listener.expect();
+		this.zoo.getZk().delete(path, -1);
+		this.listener.await();
+
+		this.listener.expect();
+		this.zoo.getZk().create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		this.listener.await();
+		return this.nodes.snapshot().getGeneration();
+	}
+
+	/**
+	 * Creates the given number of members named member-0 to member-(count-1), with all requests sent at once.
+	 */
+	static void createMembers(final ZKConnector zoo, final String group, final int count) throws InterruptedException {
+		final CountDownLatch created = new CountDownLatch(count);
+		final StringCallback callback = new StringCallback() {
+			@Override
+			public void processResult(final int rc, final String path, final Object ctx, final String name) {
+				if (Code.get(rc) != Code.OK) {
+					throw new IllegalStateException("Can't create " + path, KeeperException.create(Code.get(rc), path));
+				}
+				created.countDown();
+			}
+		};
+		for (int i = 0; i < count; i++) {
+			final String address = "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ":9300";
+			final MemberPayload payload = MemberPayload.create(Collections.singletonList(address), "node-" + i,
+					i % 10 == 0 ? MemberPayload.ROLE_MASTER : MemberPayload.ROLE_DATA, "zone-" + i % 3, System.currentTimeMillis());
+			zoo.getZk().create(group + "/member-" + i, payload.getData(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, callback, null);
+		}
+		if (!created.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Members haven't been created in time");
+		}
+	}
+
+	/**
+	 * Lets the benchmark thread wait for the next change of the set.
+	 */
+	private static class ChangeListener implements NodeSetListener<MemberPayload> {
+		private volatile CountDownLatch	changed	= new CountDownLatch(0);
+
+		void expect() {
+			this.changed = new CountDownLatch(1);
+		}
+
+		void await() throws InterruptedException {
+			if (!this.changed.await(1, TimeUnit.MINUTES)) {
+				throw new IllegalStateException("Change hasn't been applied in time");
+			}
+		}
+
+		@Override
+		public void nodeSetChanged(final NodeSetSnapshot<MemberPayload> snapshot, final List<NodeSetDelta<MemberPayload>> deltas) {
+			this.changed.countDown();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.zookeeper.ZKConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates a large cluster against a ZooKeeper server running in this JVM. Every simulated node has its own session,
+ * some of them also read the membership. The nodes join, leave, flap and restart in phases, and each phase reports how
+ * long it took until the view of every reading node was correct again, how many requests the server received and how
+ * many watch events the nodes received.
+ * <p>
+ * Options are given as key=value, see {@link ChurnSimulation#main(String[])}. The discovery mode is set with the options
+ * read by {@link SimulatedCluster}, so that runs with different modes can be compared.
+ */
+public class ChurnSimulation {
+	private static final Logger			logger	= LoggerFactory.getLogger(ChurnSimulation.class);
+	private final EmbeddedZooKeeper		server;
+	private final SimulatedCluster		cluster;
+	private final List<SimulatedNode>	nodes	= new ArrayList<SimulatedNode>();
+	private final ExecutorService		executor;
+	private final Report				report;
+	private final long					settle;
+	private final long					timeout;
+
+	ChurnSimulation(final EmbeddedZooKeeper server, final SimulatedCluster cluster, final int threads, final Report report,
+			final long settle, final long timeout) {
+		this.server = server;
+		this.cluster = cluster;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.report = report;
+		this.settle = settle;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Runs the simulation and writes the report.
+	 * <ul>
+	 * <li>members: number of simulated nodes (500)</li>
+	 * <li>viewers: number of nodes that read the membership, the others only register (50)</li>
+	 * <li>churn: number of nodes that leave, flap or restart in each phase (50)</li>
+	 * <li>flaps: how often each node unregisters and registers again in the flap phase (3)</li>
+	 * <li>threads: number of nodes that are started or stopped at the same time (32)</li>
+	 * <li>settle: time in milliseconds all views have to stay correct before a phase is over (1000)</li>
+	 * <li>timeout: time in milliseconds after which a phase is reported as not converged (120000)</li>
+	 * <li>seed: seed for choosing the nodes of each phase (1)</li>
+	 * <li>report: file to write the JSON report to, stdout if not set</li>
+	 * <li>group, fetch.pipelined, buckets, aggregate, watch.debounce, watch.jitter, session_timeout: the discovery mode</li>
+	 * </ul>
+	 */
+	public static void main(final String[] args) throws Exception {
+		final Options options = new Options(args);
+		final int members = options.getInt("members", 500);
+		final int viewers = options.getInt("viewers", 50);
+		final int churn = options.getInt("churn", 50);
+		final int flaps = options.getInt("flaps", 3);
+		final int threads = options.getInt("threads", 32);
+		final long settle = options.getLong("settle", 1000);
+		final long timeout = options.getLong("timeout", 120000);
+		final long seed = options.getLong("seed", 1);
+		final String reportFile = options.get("report", "");
+		final SimulatedCluster cluster = new SimulatedCluster(options);
+		options.checkUnknown();
+		if (viewers < 1 || viewers > members || churn > members) {
+			throw new IllegalArgumentException("Need 1 <= viewers <= members and churn <= members");
+		}
+
+		final Report report = new Report("churn");
+		report.put("options", options.getUsed());
+		final EmbeddedZooKeeper server = new EmbeddedZooKeeper();
+		server.start();
+		final ChurnSimulation simulation = new ChurnSimulation(server, cluster, threads, report, settle, timeout);
+		try {
+			simulation.run(members, viewers, churn, flaps, new Random(seed));
+		} finally {
+			simulation.shutdown();
+			server.close();
+		}
+		report.write(reportFile.length() > 0 ? new File(reportFile) : null);
+	}
+
+	void run(final int members, final int viewers, final int churn, final int flaps, final Random random) throws Exception {
+		final ZKConnector admin = new ZKConnector(this.server.getConnectString());
+		try {
+			this.cluster.createGroup(admin);
+		} finally {
+			admin.close();
+		}
+		for (int i = 0; i < members; i++) {
+			this.nodes.add(this.cluster.createNode("node-" + i, this.server.getConnectString(), i < viewers));
+		}
+		final Set<String> all = new HashSet<String>();
+		for (final SimulatedNode node : this.nodes) {
+			all.add(node.getName());
+		}
+		logger.info("Starting {} sessions", members);
+		forEach(this.nodes, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.start();
+			}
+		});
+
+		phase("join", this.nodes, all, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.register();
+			}
+		});
+
+		final List<SimulatedNode> leaving = sample(churn, random);
+		final Set<String> remaining = new HashSet<String>(all);
+		for (final SimulatedNode node : leaving) {
+			remaining.remove(node.getName());
+		}
+		phase("leave", leaving, remaining, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.stop();
+			}
+		});
+
+		phase("rejoin", leaving, all, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.start();
+				node.register();
+			}
+		});
+
+		phase("flap", sample(churn, random), all, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				for (int i = 0; i < flaps; i++) {
+					node.unregister();
+					node.register();
+				}
+			}
+		});
+
+		phase("restart", sample(churn, random), all, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.stop();
+				node.start();
+				node.register();
+			}
+		});
+	}
+
+	/**
+	 * Runs the action on the given nodes and waits until the views of all nodes that are running afterwards contain the
+	 * expected members.
+	 */
+	private void phase(final String name, final List<SimulatedNode> affected, final Set<String> expected, final NodeAction action)
+			throws Exception {
+		logger.info("Phase {}: {} nodes", name, affected.size());
+		final long packets = this.server.getPacketsReceived();
+		final long events = getWatchEvents();
+		final long start = System.nanoTime();
+		SimulatedCluster.expect(this.nodes, expected, start);
+		forEach(affected, action);
+		final long applied = System.nanoTime();
+
+		final List<SimulatedNode> running = new ArrayList<SimulatedNode>();
+		int views = 0;
+		for (final SimulatedNode node : this.nodes) {
+			if (node.isRunning()) {
+				running.add(node);
+				views += node.isViewing() ? 1 : 0;
+			}
+		}
+		final List<Long> convergence = SimulatedCluster.awaitConvergence(running, start, this.settle, this.timeout);
+		// the settle time is not part of the phase, the server only receives heartbeats while nothing changes
+		final long end = System.nanoTime() - (convergence.size() == views ? this.settle * 1000000 : 0);
+		final long received = this.server.getPacketsReceived() - packets;
+		final long watchEvents = getWatchEvents() - events;
+
+		final Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("phase", name);
+		result.put("nodes", affected.size());
+		result.put("views", views);
+		result.put("converged", convergence.size() == views);
+		result.put("views_not_converged", views - convergence.size());
+		result.put("actions_ms", Report.millis(applied - start));
+		result.put("convergence", Report.distribution(convergence));
+		result.put("server.packets_received", received);
+		result.put("server.packets_per_second", received / Math.max(0.001, (end - start) / 1000000000.0));
+		result.put("watch_events", watchEvents);
+		result.put("watch_events_per_view", views > 0 ? (double) watchEvents / views : 0.0);
+		this.report.add("phases", result);
+		logger.info("Phase {}: {} of {} views converged, {}", new Object[] { name, convergence.size(), views, result.get("convergence") });
+	}
+
+	void shutdown() throws Exception {
+		forEach(this.nodes, new NodeAction() {
+			@Override
+			public void run(final SimulatedNode node) throws Exception {
+				node.stop();
+			}
+		});
+		this.executor.shutdownNow();
+	}
+
+	private List<SimulatedNode> sample(final int count, final Random random) {
+		final List<SimulatedNode> shuffled = new ArrayList<SimulatedNode>(this.nodes);
+		Collections.shuffle(shuffled, random);
+		return new ArrayList<SimulatedNode>(shuffled.subList(0, count));
+	}
+
+	private long getWatchEvents() {
+		long events = 0;
+		for (final SimulatedNode node : this.nodes) {
+			events += node.getWatchEvents();
+		}
+		return events;
+	}
+
+	/**
+	 * Runs the action on all nodes in parallel and waits for all of them, rethrowing the first failure.
+	 */
+	private void forEach(final List<SimulatedNode> targets, final NodeAction action) throws Exception {
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final SimulatedNode node : targets) {
+			futures.add(this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					action.run(node);
+					return null;
+				}
+			}));
+		}
+		for (final Future<Void> future : futures) {
+			future.get();
+		}
+	}
+
+	interface NodeAction {
+		void run(SimulatedNode node) throws Exception;
+	}
+}
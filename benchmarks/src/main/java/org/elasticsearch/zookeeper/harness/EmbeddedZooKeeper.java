@@ -0,0 +1,104 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * A single ZooKeeper server running in the current JVM, storing its data in a temporary directory that is removed once the
+ * server has been stopped.
+ */
+public class EmbeddedZooKeeper {
+	private static final int		tickTime		= 500;
+	private static final int		maxClientCnxns	= 10000;
+	private final File				dataDir;
+	private int						port;
+	private ZooKeeperServer			server;
+	private NIOServerCnxnFactory	factory;
+
+	/**
+	 * @throws IOException if the data directory can't be created
+	 */
+	public EmbeddedZooKeeper() throws IOException {
+		this.dataDir = File.createTempFile("zk-embedded", "");
+		if (!this.dataDir.delete() || !this.dataDir.mkdirs()) {
+			throw new IOException("Can't create data directory " + this.dataDir);
+		}
+	}
+
+	/**
+	 * Starts the server on a free port, or on the port it has been running on before if it is started again. Sessions that
+	 * haven't timed out while the server was down are restored from the data directory.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized void start() throws IOException, InterruptedException {
+		this.server = new ZooKeeperServer(this.dataDir, this.dataDir, tickTime);
+		this.factory = new NIOServerCnxnFactory();
+		this.factory.configure(new InetSocketAddress("127.0.0.1", this.port), maxClientCnxns);
+		this.factory.startup(this.server);
+		this.port = this.factory.getLocalPort();
+	}
+
+	/**
+	 * Stops the server, keeping its data for the next {@link EmbeddedZooKeeper#start()}.
+	 */
+	public synchronized void stop() {
+		if (this.factory != null) {
+			this.factory.shutdown();
+			this.factory = null;
+		}
+		if (this.server != null) {
+			this.server.shutdown();
+			this.server = null;
+		}
+	}
+
+	/**
+	 * Stops the server and removes its data.
+	 */
+	public void close() {
+		stop();
+		delete(this.dataDir);
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Returns the connect string for clients, see {@link org.apache.zookeeper.ZooKeeper#ZooKeeper(String, int, org.apache.zookeeper.Watcher)}.
+	 */
+	public String getConnectString() {
+		return "127.0.0.1:" + this.port;
+	}
+
+	/**
+	 * Returns the server, or null while it is stopped.
+	 */
+	public synchronized ZooKeeperServer getServer() {
+		return this.server;
+	}
+
+	/**
+	 * Returns the number of packets the server has received since it has been started, which includes the heartbeats of
+	 * all sessions.
+	 */
+	public synchronized long getPacketsReceived() {
+		return this.server != null ? this.server.serverStats().getPacketsReceived() : 0;
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
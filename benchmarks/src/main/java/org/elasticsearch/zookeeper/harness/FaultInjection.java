@@ -0,0 +1,433 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.elasticsearch.zookeeper.ZKConnectionListener;
+import org.elasticsearch.zookeeper.ZKConnectionState;
+import org.elasticsearch.zookeeper.ZKConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Injects faults into the sessions of simulated nodes and measures how long it takes until they have recovered. Every
+ * node talks to the ZooKeeper server in this JVM through its own {@link FaultProxy}. Each scenario is repeated for a
+ * number of rounds with a random victim, and the report holds the distribution of these latencies, all measured from the
+ * end of the fault:
+ * <ul>
+ * <li>reconnect: until the victim's connector is connected again, or every node's after a server restart, or the new
+ * session of a restarted victim</li>
+ * <li>reregistration: until the victim's node has been registered again by its new session, or replaced by its own
+ * session after a retry</li>
+ * <li>consistent_view: until the view of every reading node contains all nodes again</li>
+ * </ul>
+ * The single server can't change its leader, the server restart scenario is the closest to that, as all clients lose their
+ * connection and have to reconnect while their sessions are kept.
+ */
+public class FaultInjection {
+	private static final Logger				logger			= LoggerFactory.getLogger(FaultInjection.class);
+	private static final long				pollInterval	= 5;
+	private final EmbeddedZooKeeper			server;
+	private final SimulatedCluster			cluster;
+	private final List<SimulatedNode>		nodes			= new ArrayList<SimulatedNode>();
+	private final List<FaultProxy>			proxies			= new ArrayList<FaultProxy>();
+	private final Set<String>				names			= new HashSet<String>();
+	private final Report					report;
+	private final Random					random;
+	private final long						settle;
+	private final long						timeout;
+	private ZKConnector						admin;
+
+	/**
+	 * The faults that can be injected.
+	 */
+	enum Scenario {
+		/**
+		 * The victim's session is expired by the server.
+		 */
+		EXPIRY,
+		/**
+		 * The victim's session is expired while the traffic of all nodes is delayed.
+		 */
+		SLOW_EXPIRY,
+		/**
+		 * The victim's connection is closed, the session is kept.
+		 */
+		CONNECTION_LOSS,
+		/**
+		 * The victim's traffic is discarded for some time, which expires its session if that time is longer than the
+		 * session timeout.
+		 */
+		PARTITION,
+		/**
+		 * The server is stopped and started again, all clients lose their connection.
+		 */
+		SERVER_RESTART,
+		/**
+		 * The victim is killed without closing its session and started again right away, so its new session finds the
+		 * registration of the old one and has to take it over once the old session has expired.
+		 */
+		RESTART,
+		/**
+		 * The victim registers again while its registration is still held by its own session, as it does when the response
+		 * to its create has been lost with the connection.
+		 */
+		RETRY
+	}
+
+	FaultInjection(final EmbeddedZooKeeper server, final SimulatedCluster cluster, final Report report, final Random random,
+			final long settle, final long timeout) {
+		this.server = server;
+		this.cluster = cluster;
+		this.report = report;
+		this.random = random;
+		this.settle = settle;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Runs all scenarios and writes the report.
+	 * <ul>
+	 * <li>members: number of simulated nodes (20)</li>
+	 * <li>viewers: number of nodes that read the membership, the others only register (10)</li>
+	 * <li>rounds: how often each scenario is repeated (10)</li>
+	 * <li>scenarios: comma separated list of expiry, slow_expiry, connection_loss, partition, server_restart, restart and
+	 * retry (all)</li>
+	 * <li>delay: delay of all traffic in milliseconds in slow_expiry (200)</li>
+	 * <li>partition: duration of a partition in milliseconds (twice the session timeout)</li>
+	 * <li>outage: time in milliseconds the server is down in server_restart (half the session timeout)</li>
+	 * <li>settle: time in milliseconds all views have to stay correct before a round is over (500)</li>
+	 * <li>timeout: time in milliseconds after which a round is reported as failed (60000)</li>
+	 * <li>seed: seed for choosing the victims (1)</li>
+	 * <li>report: file to write the JSON report to, stdout if not set</li>
+	 * <li>group, fetch.pipelined, buckets, aggregate, watch.debounce, watch.jitter, session_timeout: the discovery mode,
+	 * with a session timeout of 4000 milliseconds by default</li>
+	 * </ul>
+	 */
+	public static void main(final String[] args) throws Exception {
+		final Options options = new Options(args);
+		final int members = options.getInt("members", 20);
+		final int viewers = options.getInt("viewers", 10);
+		final int rounds = options.getInt("rounds", 10);
+		final String scenarios = options.get("scenarios", "expiry,slow_expiry,connection_loss,partition,server_restart,restart,retry");
+		final SimulatedCluster cluster = new SimulatedCluster(options, 4000);
+		final long delay = options.getLong("delay", 200);
+		final long partition = options.getLong("partition", 2L * cluster.getSessionTimeout());
+		final long outage = options.getLong("outage", cluster.getSessionTimeout() / 2);
+		final long settle = options.getLong("settle", 500);
+		final long timeout = options.getLong("timeout", 60000);
+		final long seed = options.getLong("seed", 1);
+		final String reportFile = options.get("report", "");
+		options.checkUnknown();
+		if (viewers < 1 || viewers > members) {
+			throw new IllegalArgumentException("Need 1 <= viewers <= members");
+		}
+
+		final Report report = new Report("fault_injection");
+		report.put("options", options.getUsed());
+		final EmbeddedZooKeeper server = new EmbeddedZooKeeper();
+		server.start();
+		final FaultInjection harness = new FaultInjection(server, cluster, report, new Random(seed), settle, timeout);
+		try {
+			harness.start(members, viewers);
+			for (final String name : scenarios.split(",")) {
+				final Scenario scenario = Scenario.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+				final Measurements measurements = new Measurements();
+				logger.info("Scenario {}: {} rounds", scenario, rounds);
+				for (int round = 0; round < rounds; round++) {
+					harness.runRound(scenario, measurements, delay, partition, outage);
+				}
+				final Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("scenario", scenario.name().toLowerCase(Locale.ENGLISH));
+				result.put("rounds", rounds);
+				result.putAll(measurements.toMap());
+				report.add("scenarios", result);
+				logger.info("Scenario {}: {}", scenario, result);
+			}
+		} finally {
+			harness.stop();
+			server.close();
+		}
+		report.write(reportFile.length() > 0 ? new File(reportFile) : null);
+	}
+
+	/**
+	 * Starts and registers all nodes and waits until every view is complete.
+	 */
+	void start(final int members, final int viewers) throws Exception {
+		this.admin = new ZKConnector(this.server.getConnectString());
+		this.cluster.createGroup(this.admin);
+		for (int i = 0; i < members; i++) {
+			final FaultProxy proxy = new FaultProxy("127.0.0.1", this.server.getPort());
+			final SimulatedNode node = this.cluster.createNode("node-" + i, proxy.getConnectString(), i < viewers);
+			this.proxies.add(proxy);
+			this.nodes.add(node);
+			this.names.add(node.getName());
+			node.start();
+		}
+		final long start = System.nanoTime();
+		SimulatedCluster.expect(this.nodes, this.names, start);
+		for (final SimulatedNode node : this.nodes) {
+			node.register();
+		}
+		if (SimulatedCluster.awaitConvergence(this.nodes, start, this.settle, this.timeout).size() != viewers) {
+			throw new IllegalStateException("Views haven't converged after the nodes have been started");
+		}
+	}
+
+	void stop() throws InterruptedException {
+		for (final SimulatedNode node : this.nodes) {
+			node.stop();
+		}
+		for (final FaultProxy proxy : this.proxies) {
+			proxy.close();
+		}
+		if (this.admin != null) {
+			this.admin.close();
+		}
+	}
+
+	void runRound(final Scenario scenario, final Measurements measurements, final long delay, final long partition, final long outage)
+			throws Exception {
+		final int index = this.random.nextInt(this.nodes.size());
+		final SimulatedNode victim = this.nodes.get(index);
+		final FaultProxy proxy = this.proxies.get(index);
+		final ZKConnector connector = victim.getConnector();
+		final long oldSession = connector.getZk().getSessionId();
+		final Stat oldRegistration = this.admin.getZk().exists(victim.getRegistrationPath(), false);
+		final StateLatch connected = new StateLatch(EnumSet.of(ZKConnectionState.RECONNECTED, ZKConnectionState.RECOVERED));
+		connector.addListener(connected);
+		final long start = System.nanoTime();
+		SimulatedCluster.expect(this.nodes, this.names, start);
+
+		long end = start;
+		long restarted = 0;
+		boolean reregisters = true;
+		switch (scenario) {
+			case SLOW_EXPIRY:
+				for (final FaultProxy other : this.proxies) {
+					other.setDelay(delay);
+				}
+				expireSession(victim);
+				break;
+			case EXPIRY:
+				expireSession(victim);
+				break;
+			case CONNECTION_LOSS:
+				proxy.drop();
+				reregisters = false;
+				break;
+			case PARTITION:
+				proxy.partition();
+				Thread.sleep(partition);
+				proxy.heal();
+				end = System.nanoTime();
+				reregisters = partition > this.cluster.getSessionTimeout();
+				break;
+			case SERVER_RESTART:
+				this.server.stop();
+				Thread.sleep(outage);
+				this.server.start();
+				end = System.nanoTime();
+				reregisters = false;
+				break;
+			case RESTART:
+				// the traffic is discarded while the session is closed, so the server never hears of it
+				proxy.partition();
+				victim.kill();
+				proxy.heal();
+				end = System.nanoTime();
+				victim.start();
+				restarted = System.nanoTime();
+				victim.register();
+				break;
+			case RETRY:
+				victim.registerAgain();
+				break;
+		}
+
+		boolean failed = false;
+		if (scenario == Scenario.SERVER_RESTART) {
+			final List<Long> reconnected = awaitConnected(end);
+			measurements.reconnect.addAll(reconnected);
+			failed = reconnected.size() != this.nodes.size();
+		}
+		else if (scenario == Scenario.RESTART) {
+			measurements.reconnect.add(restarted - end);
+		}
+		else if (scenario != Scenario.RETRY) {
+			if (connected.await(this.timeout)) {
+				measurements.reconnect.add(Math.max(0, connected.reachedAt - end));
+			}
+			else {
+				failed = true;
+			}
+		}
+		connector.removeListener(connected);
+
+		if (reregisters && !failed) {
+			final long registered = awaitRegistration(victim, oldSession, oldRegistration != null ? oldRegistration.getCzxid() : 0);
+			if (registered > 0) {
+				measurements.reregistration.add(Math.max(0, registered - end));
+			}
+			else {
+				failed = true;
+			}
+		}
+
+		final List<Long> views = SimulatedCluster.awaitConvergence(this.nodes, end, this.settle, this.timeout);
+		int viewers = 0;
+		for (final SimulatedNode node : this.nodes) {
+			viewers += node.isViewing() ? 1 : 0;
+		}
+		if (views.size() == viewers) {
+			long slowest = 0;
+			for (final long view : views) {
+				slowest = Math.max(slowest, view);
+			}
+			measurements.consistentView.add(slowest);
+		}
+		else {
+			failed = true;
+		}
+
+		for (final FaultProxy other : this.proxies) {
+			other.setDelay(0);
+		}
+		if (failed) {
+			measurements.failed++;
+			logger.warn("Round of {} with victim {} didn't recover within {}ms", new Object[] { scenario, victim.getName(), this.timeout });
+		}
+	}
+
+	/**
+	 * Expires the session of the node the way the server does, by opening a second connection for the same session and
+	 * closing it.
+	 */
+	private void expireSession(final SimulatedNode node) throws Exception {
+		final ZooKeeper zk = node.getConnector().getZk();
+		final CountDownLatch connected = new CountDownLatch(1);
+		final ZooKeeper duplicate = new ZooKeeper(this.server.getConnectString(), this.cluster.getSessionTimeout(), new Watcher() {
+			@Override
+			public void process(final WatchedEvent event) {
+				if (event.getState() == KeeperState.SyncConnected) {
+					connected.countDown();
+				}
+			}
+		}, zk.getSessionId(), zk.getSessionPasswd());
+		try {
+			if (!connected.await(this.timeout, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("Can't connect to the session of " + node.getName());
+			}
+		} finally {
+			duplicate.close();
+		}
+	}
+
+	/**
+	 * Waits until the node's registration has been replaced by one held by its current session, which is either another
+	 * session than the given one or the same session with another registration than the given one.
+	 * 
+	 * @param oldSession Session that held the registration before the fault
+	 * @param oldCzxid Zxid of the creation of the registration before the fault
+	 * @return the time it has been seen, or -1 if it hasn't been registered in time
+	 */
+	private long awaitRegistration(final SimulatedNode node, final long oldSession, final long oldCzxid) throws InterruptedException {
+		final long deadline = System.nanoTime() + this.timeout * 1000000;
+		while (System.nanoTime() < deadline) {
+			try {
+				final Stat stat = this.admin.getZk().exists(node.getRegistrationPath(), false);
+				final long owner = stat != null ? stat.getEphemeralOwner() : 0;
+				if (owner != 0 && owner == node.getConnector().getZk().getSessionId()
+						&& (owner != oldSession || stat.getCzxid() != oldCzxid)) {
+					return System.nanoTime();
+				}
+			} catch (KeeperException e) {
+				// the admin session is reconnecting
+			}
+			Thread.sleep(pollInterval);
+		}
+		return -1;
+	}
+
+	/**
+	 * Waits until all nodes are connected.
+	 * 
+	 * @return the time from the given start until each node has been connected
+	 */
+	private List<Long> awaitConnected(final long start) throws InterruptedException {
+		final long deadline = System.nanoTime() + this.timeout * 1000000;
+		final List<Long> connected = new ArrayList<Long>();
+		final Set<SimulatedNode> pending = new HashSet<SimulatedNode>(this.nodes);
+		while (!pending.isEmpty() && System.nanoTime() < deadline) {
+			for (final SimulatedNode node : new ArrayList<SimulatedNode>(pending)) {
+				if (node.getConnector().isConnected()) {
+					connected.add(System.nanoTime() - start);
+					pending.remove(node);
+				}
+			}
+			Thread.sleep(pollInterval);
+		}
+		return connected;
+	}
+
+	/**
+	 * The latencies of all rounds of a scenario.
+	 */
+	static class Measurements {
+		final List<Long>	reconnect		= new ArrayList<Long>();
+		final List<Long>	reregistration	= new ArrayList<Long>();
+		final List<Long>	consistentView	= new ArrayList<Long>();
+		int					failed;
+
+		Map<String, Object> toMap() {
+			final Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("failed_rounds", this.failed);
+			map.put("reconnect", Report.distribution(this.reconnect));
+			map.put("reregistration", Report.distribution(this.reregistration));
+			map.put("consistent_view", Report.distribution(this.consistentView));
+			return map;
+		}
+	}
+
+	/**
+	 * Records when a connector has reached one of the given states.
+	 */
+	private static class StateLatch implements ZKConnectionListener {
+		private final Set<ZKConnectionState>	states;
+		private final CountDownLatch			reached	= new CountDownLatch(1);
+		private volatile long					reachedAt;
+
+		StateLatch(final Set<ZKConnectionState> states) {
+			this.states = states;
+		}
+
+		@Override
+		public void connectionStateChanged(final ZKConnector connector, final ZKConnectionState state) {
+			if (this.states.contains(state) && this.reached.getCount() > 0) {
+				this.reachedAt = System.nanoTime();
+				this.reached.countDown();
+			}
+		}
+
+		boolean await(final long timeoutMillis) throws InterruptedException {
+			return this.reached.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
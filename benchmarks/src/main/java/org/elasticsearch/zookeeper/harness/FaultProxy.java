@@ -0,0 +1,191 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TCP proxy between one client and the ZooKeeper server, that can drop, delay and partition the traffic of that client.
+ * Each direction of a connection is forwarded by its own thread.
+ */
+public class FaultProxy {
+	private static final Logger		logger		= LoggerFactory.getLogger(FaultProxy.class);
+	private final InetSocketAddress	target;
+	private final ServerSocket		serverSocket;
+	private final Set<Socket>		sockets		= Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private volatile long			delay;
+	private volatile boolean		partitioned;
+	private volatile boolean		closed;
+
+	/**
+	 * Starts accepting connections on a free local port.
+	 * 
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 */
+	public FaultProxy(final String host, final int port) throws IOException {
+		this.target = new InetSocketAddress(host, port);
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final Thread acceptor = new Thread(new Accept(), "fault-proxy-" + this.serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the connect string clients have to use to go through this proxy.
+	 */
+	public String getConnectString() {
+		return "127.0.0.1:" + this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Holds back all data for the given time before forwarding it.
+	 * 
+	 * @param millis Delay in milliseconds, 0 to forward right away
+	 */
+	public void setDelay(final long millis) {
+		this.delay = millis;
+	}
+
+	/**
+	 * Closes all open connections, like a lost connection or a crashed server does. New connections are accepted.
+	 */
+	public void drop() {
+		for (final Socket socket : this.sockets) {
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Discards all data in both directions until {@link FaultProxy#heal()} is called. Connections stay open and new ones
+	 * are accepted, so the client only notices by timing out, as it does when the network is partitioned.
+	 */
+	public void partition() {
+		this.partitioned = true;
+	}
+
+	public void heal() {
+		this.partitioned = false;
+	}
+
+	/**
+	 * Stops accepting connections and closes all open ones.
+	 */
+	public void close() {
+		this.closed = true;
+		closeQuietly(this.serverSocket);
+		drop();
+	}
+
+	private void forward(final Socket client) {
+		final Socket server = new Socket();
+		try {
+			server.setTcpNoDelay(true);
+			client.setTcpNoDelay(true);
+			server.connect(this.target);
+		} catch (IOException e) {
+			logger.debug("Can't connect to {}: {}", this.target, e.getMessage());
+			closeQuietly(client);
+			closeQuietly(server);
+			return;
+		}
+		this.sockets.add(client);
+		this.sockets.add(server);
+		if (this.closed) {
+			drop();
+			return;
+		}
+		start(new Pump(client, server), "fault-proxy-up-" + client.getPort());
+		start(new Pump(server, client), "fault-proxy-down-" + client.getPort());
+	}
+
+	private static void start(final Runnable runnable, final String name) {
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void closeQuietly(final Socket socket) {
+		this.sockets.remove(socket);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	private static void closeQuietly(final ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	private class Accept implements Runnable {
+		@Override
+		public void run() {
+			while (!FaultProxy.this.closed) {
+				try {
+					forward(FaultProxy.this.serverSocket.accept());
+				} catch (IOException e) {
+					if (!FaultProxy.this.closed) {
+						logger.warn("Proxy stopped accepting connections", e);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forwards one direction of a connection and closes both sides once either side has been closed.
+	 */
+	private class Pump implements Runnable {
+		private final Socket	from;
+		private final Socket	to;
+
+		Pump(final Socket from, final Socket to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[64 * 1024];
+			try {
+				final InputStream in = this.from.getInputStream();
+				final OutputStream out = this.to.getOutputStream();
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					final long delay = FaultProxy.this.delay;
+					if (delay > 0) {
+						Thread.sleep(delay);
+					}
+					if (!FaultProxy.this.partitioned) {
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				// closed by either side or by drop()
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				closeQuietly(this.from);
+				closeQuietly(this.to);
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Options of a harness run, given as key=value arguments on the command line. All options that have been read are
+ * recorded, including their defaults, so that the report tells exactly how a run has been configured.
+ */
+public class Options {
+	private final Map<String, String>	given	= new LinkedHashMap<String, String>();
+	private final Map<String, Object>	used	= new LinkedHashMap<String, Object>();
+
+	/**
+	 * @param args Arguments as key=value
+	 * @throws IllegalArgumentException if an argument is not in that form
+	 */
+	public Options(final String[] args) {
+		for (final String arg : args) {
+			final int split = arg.indexOf('=');
+			if (split <= 0) {
+				throw new IllegalArgumentException("Expected key=value but got [" + arg + "]");
+			}
+			this.given.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+	}
+
+	public String get(final String key, final String defaultValue) {
+		final String value = this.given.containsKey(key) ? this.given.get(key) : defaultValue;
+		this.used.put(key, value);
+		return value;
+	}
+
+	public int getInt(final String key, final int defaultValue) {
+		final int value = this.given.containsKey(key) ? Integer.parseInt(this.given.get(key)) : defaultValue;
+		this.used.put(key, value);
+		return value;
+	}
+
+	public long getLong(final String key, final long defaultValue) {
+		final long value = this.given.containsKey(key) ? Long.parseLong(this.given.get(key)) : defaultValue;
+		this.used.put(key, value);
+		return value;
+	}
+
+	public boolean getBoolean(final String key, final boolean defaultValue) {
+		final boolean value = this.given.containsKey(key) ? Boolean.parseBoolean(this.given.get(key)) : defaultValue;
+		this.used.put(key, value);
+		return value;
+	}
+
+	/**
+	 * Returns all options that have been read so far.
+	 */
+	public Map<String, Object> getUsed() {
+		return Collections.unmodifiableMap(this.used);
+	}
+
+	/**
+	 * Fails if an option has been given that isn't known, to catch typos before a long run.
+	 */
+	public void checkUnknown() {
+		for (final String key : this.given.keySet()) {
+			if (!this.used.containsKey(key)) {
+				throw new IllegalArgumentException("Unknown option [" + key + "], known options are " + this.used.keySet());
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A machine readable report of a harness run, written as JSON. Sections are kept in the order they have been added, so
+ * that reports of different runs can be compared line by line.
+ */
+public class Report {
+	private final Map<String, Object>	root	= new LinkedHashMap<String, Object>();
+
+	/**
+	 * @param harness Name of the harness that produced the report
+	 */
+	public Report(final String harness) {
+		this.root.put("harness", harness);
+		this.root.put("timestamp", System.currentTimeMillis());
+		this.root.put("java.version", System.getProperty("java.version"));
+		this.root.put("available_processors", Runtime.getRuntime().availableProcessors());
+	}
+
+	public void put(final String key, final Object value) {
+		this.root.put(key, value);
+	}
+
+	/**
+	 * Adds an entry to the list with the given key, creating the list if necessary.
+	 */
+	@SuppressWarnings("unchecked")
+	public void add(final String key, final Object value) {
+		List<Object> list = (List<Object>) this.root.get(key);
+		if (list == null) {
+			list = new ArrayList<Object>();
+			this.root.put(key, list);
+		}
+		list.add(value);
+	}
+
+	/**
+	 * Summarizes a list of durations with their percentiles, in milliseconds.
+	 * 
+	 * @param nanos Durations in nanoseconds
+	 */
+	public static Map<String, Object> distribution(final List<Long> nanos) {
+		final List<Long> sorted = new ArrayList<Long>(nanos);
+		Collections.sort(sorted);
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("count", sorted.size());
+		if (sorted.isEmpty()) {
+			return map;
+		}
+		long sum = 0;
+		for (final long value : sorted) {
+			sum += value;
+		}
+		map.put("min_ms", millis(sorted.get(0)));
+		map.put("mean_ms", millis(sum / sorted.size()));
+		map.put("p50_ms", millis(percentile(sorted, 0.5)));
+		map.put("p90_ms", millis(percentile(sorted, 0.9)));
+		map.put("p99_ms", millis(percentile(sorted, 0.99)));
+		map.put("max_ms", millis(sorted.get(sorted.size() - 1)));
+		return map;
+	}
+
+	public static double millis(final long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	/**
+	 * Writes the report to the given file, or to stdout if no file is given.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(final File file) throws IOException {
+		final StringBuilder json = new StringBuilder();
+		append(json, this.root, "");
+		json.append('\n');
+		if (file == null) {
+			System.out.print(json);
+			System.out.flush();
+			return;
+		}
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(json.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static long percentile(final List<Long> sorted, final double percentile) {
+		final int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+	}
+
+	private static void append(final StringBuilder json, final Object value, final String indent) {
+		if (value == null) {
+			json.append("null");
+		}
+		else if (value instanceof Map) {
+			final Iterator<? extends Entry<?, ?>> it = ((Map<?, ?>) value).entrySet().iterator();
+			json.append('{');
+			while (it.hasNext()) {
+				final Entry<?, ?> entry = it.next();
+				json.append('\n').append(indent).append('\t');
+				appendString(json, String.valueOf(entry.getKey()));
+				json.append(": ");
+				append(json, entry.getValue(), indent + "\t");
+				if (it.hasNext()) {
+					json.append(',');
+				}
+			}
+			json.append('\n').append(indent).append('}');
+		}
+		else if (value instanceof Iterable) {
+			final Iterator<?> it = ((Iterable<?>) value).iterator();
+			json.append('[');
+			while (it.hasNext()) {
+				json.append('\n').append(indent).append('\t');
+				append(json, it.next(), indent + "\t");
+				if (it.hasNext()) {
+					json.append(',');
+				}
+			}
+			json.append('\n').append(indent).append(']');
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			final double number = ((Number) value).doubleValue();
+			json.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : String.format(Locale.ENGLISH, "%.3f", number));
+		}
+		else if (value instanceof Number || value instanceof Boolean) {
+			json.append(value);
+		}
+		else {
+			appendString(json, value.toString());
+		}
+	}
+
+	private static void appendString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				json.append(String.format(Locale.ENGLISH, "\\u%04x", (int) c));
+			}
+			else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
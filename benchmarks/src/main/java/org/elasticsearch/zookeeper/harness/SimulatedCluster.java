@@ -0,0 +1,156 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.elasticsearch.zookeeper.NodeSet;
+import org.elasticsearch.zookeeper.ZKConnector;
+
+/**
+ * The discovery mode shared by all {@link SimulatedNode}s of a run, read from the same options as the cloud.zk settings
+ * of the plugin, and the tools to wait for their views to converge.
+ */
+public class SimulatedCluster {
+	private static final long				pollInterval	= 5;
+	final String							group;
+	final boolean							pipelined;
+	final int								buckets;
+	final boolean							aggregate;
+	final long								debounce;
+	final long								jitter;
+	final int								sessionTimeout;
+	private final NodeSet<MemberPayload>	layout;
+
+	/**
+	 * Reads the options group, fetch.pipelined, buckets, aggregate, watch.debounce, watch.jitter and session_timeout.
+	 * 
+	 * @param options
+	 */
+	public SimulatedCluster(final Options options) {
+		this(options, 30000);
+	}
+
+	/**
+	 * @param options
+	 * @param defaultSessionTimeout Session timeout in milliseconds if session_timeout isn't given
+	 */
+	public SimulatedCluster(final Options options, final int defaultSessionTimeout) {
+		this.group = options.get("group", "/harness");
+		this.pipelined = options.getBoolean("fetch.pipelined", true);
+		this.buckets = options.getInt("buckets", 0);
+		this.aggregate = options.getBoolean("aggregate", false);
+		this.debounce = options.getLong("watch.debounce", 100);
+		this.jitter = options.getLong("watch.jitter", 50);
+		this.sessionTimeout = options.getInt("session_timeout", defaultSessionTimeout);
+		// never connected, only used to place the members the same way the views read them
+		this.layout = new NodeSet<MemberPayload>(new ZKConnector(), this.group, MemberPayload.CODEC, false, null, this.buckets);
+	}
+
+	/**
+	 * Creates the group node, and the bucket nodes if the members are hashed into buckets.
+	 * 
+	 * @param zoo
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void createGroup(final ZKConnector zoo) throws KeeperException, InterruptedException {
+		final List<String> paths = new ArrayList<String>();
+		paths.add(this.group);
+		for (int i = 0; i < this.buckets; i++) {
+			paths.add(this.group + "/_bucket-" + i);
+		}
+		for (final String path : paths) {
+			try {
+				zoo.getZk().create(path, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+				// left over from an earlier run
+			}
+		}
+	}
+
+	/**
+	 * Returns the session timeout in milliseconds the nodes ask for.
+	 */
+	public int getSessionTimeout() {
+		return this.sessionTimeout;
+	}
+
+	/**
+	 * @param name Name the node registers with
+	 * @param connectString ZooKeeper the node connects to
+	 * @param viewing If true the node reads the membership, otherwise it only registers
+	 */
+	public SimulatedNode createNode(final String name, final String connectString, final boolean viewing) {
+		return new SimulatedNode(this, name, connectString, viewing);
+	}
+
+	String getParentOf(final String name) {
+		return this.layout.getParentOf(name);
+	}
+
+	/**
+	 * Tells all viewing nodes which members they should see once the current phase is over.
+	 * 
+	 * @param nodes
+	 * @param expected
+	 * @param startNanos Start of the phase, convergence is measured from here
+	 */
+	public static void expect(final Collection<SimulatedNode> nodes, final Set<String> expected, final long startNanos) {
+		for (final SimulatedNode node : nodes) {
+			if (node.isViewing()) {
+				node.expect(expected, startNanos);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the view of every viewing node matches the expected members and has kept matching for the settle time,
+	 * so that a view which is only correct for a moment while events are still arriving isn't counted as converged.
+	 * 
+	 * @param nodes
+	 * @param startNanos Start of the phase
+	 * @param settleMillis
+	 * @param timeoutMillis
+	 * @return the time from the start of the phase until each converged view last became correct, views that haven't
+	 *         converged within the timeout are missing
+	 * @throws InterruptedException
+	 */
+	public static List<Long> awaitConvergence(final Collection<SimulatedNode> nodes, final long startNanos, final long settleMillis,
+			final long timeoutMillis) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutMillis * 1000000;
+		long settledSince = -1;
+		while (System.nanoTime() < deadline) {
+			boolean matching = true;
+			for (final SimulatedNode node : nodes) {
+				if (node.isViewing() && !node.isMatching()) {
+					matching = false;
+					break;
+				}
+			}
+			if (!matching) {
+				settledSince = -1;
+			}
+			else if (settledSince < 0) {
+				settledSince = System.nanoTime();
+			}
+			else if (System.nanoTime() - settledSince >= settleMillis * 1000000) {
+				break;
+			}
+			Thread.sleep(pollInterval);
+		}
+
+		final List<Long> converged = new ArrayList<Long>();
+		for (final SimulatedNode node : nodes) {
+			if (node.isViewing() && node.isMatching()) {
+				converged.add(Math.max(0, node.getMatchedAt() - startNanos));
+			}
+		}
+		return converged;
+	}
+}
@@ -0,0 +1,215 @@
+package org.elasticsearch.zookeeper.harness;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.zookeeper.KeeperException;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.elasticsearch.zookeeper.NodeSet;
+import org.elasticsearch.zookeeper.NodeSetAggregator;
+import org.elasticsearch.zookeeper.NodeSetDelta;
+import org.elasticsearch.zookeeper.NodeSetListener;
+import org.elasticsearch.zookeeper.NodeSetMember;
+import org.elasticsearch.zookeeper.NodeSetSnapshot;
+import org.elasticsearch.zookeeper.WatchDispatcher;
+import org.elasticsearch.zookeeper.ZKConnector;
+import org.elasticsearch.zookeeper.ZKMetrics;
+
+/**
+ * A cluster node with its own ZooKeeper session, set up like {@link org.elasticsearch.cloud.zk.ZkService} sets up a node:
+ * it registers with a {@link NodeSetMember} and, if it is viewing, reads the membership with a {@link NodeSet}. Stopping
+ * and starting the node replaces the session, just like restarting the process does.
+ * <p>
+ * The node is driven by one harness thread at a time. Only the state of the view is synchronized, as it is updated by the
+ * threads of the session while a pipelined sync is waited for.
+ */
+public class SimulatedNode implements NodeSetListener<MemberPayload> {
+	private final SimulatedCluster				cluster;
+	private final String						name;
+	private final String						connectString;
+	private final boolean						viewing;
+	private volatile ZKConnector				zoo;
+	private volatile WatchDispatcher			dispatcher;
+	private volatile NodeSet<MemberPayload>		view;
+	private NodeSetAggregator<MemberPayload>	aggregator;
+	private NodeSetMember						member;
+	private volatile long						retiredWatchEvents;
+	private Set<String>							expected;
+	private boolean								matching;
+	private long								matchedAt;
+
+	SimulatedNode(final SimulatedCluster cluster, final String name, final String connectString, final boolean viewing) {
+		this.cluster = cluster;
+		this.name = name;
+		this.connectString = connectString;
+		this.viewing = viewing;
+	}
+
+	/**
+	 * Opens a new session and reads the membership if the node is viewing. Doesn't register the node.
+	 * 
+	 * @throws IOException
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void start() throws IOException, KeeperException, InterruptedException {
+		this.zoo = new ZKConnector(this.cluster.sessionTimeout);
+		this.zoo.connect(this.connectString);
+		this.dispatcher = new WatchDispatcher(this.cluster.debounce, this.cluster.jitter);
+		if (!this.viewing) {
+			return;
+		}
+		this.view = new NodeSet<MemberPayload>(this.zoo, this.cluster.group, MemberPayload.CODEC, this.cluster.pipelined,
+				this.dispatcher, this.cluster.buckets);
+		if (this.cluster.aggregate) {
+			this.aggregator = new NodeSetAggregator<MemberPayload>(this.zoo, this.view, this.cluster.group, this.dispatcher);
+		}
+		this.view.addListener(this);
+		this.view.sync();
+		if (this.aggregator != null) {
+			this.aggregator.start();
+		}
+	}
+
+	/**
+	 * Registers the node with the group.
+	 */
+	public void register() {
+		this.member = new NodeSetMember(this.zoo, this.cluster.getParentOf(this.name), this.name, MemberPayload.create(
+				Collections.singletonList(this.name + ":9300"), this.name, MemberPayload.ROLE_MASTER | MemberPayload.ROLE_DATA, "",
+				System.currentTimeMillis()), MemberPayload.CODEC, this.dispatcher);
+		this.member.registerNode();
+	}
+
+	/**
+	 * Registers the node again with the current session while its registration is still there, like a retry after the
+	 * response to the create has been lost does.
+	 */
+	public void registerAgain() {
+		this.member.registerNode();
+	}
+
+	/**
+	 * Removes the registration, the session stays open.
+	 */
+	public void unregister() {
+		if (this.member != null) {
+			this.member.unregisterNode();
+			this.member = null;
+		}
+	}
+
+	/**
+	 * Closes the session, which removes the registration. The counters of the session are kept.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		if (this.zoo == null) {
+			return;
+		}
+		if (this.aggregator != null) {
+			this.aggregator.stop();
+			this.aggregator = null;
+		}
+		this.retiredWatchEvents += getWatchEvents(this.zoo.getMetrics());
+		this.dispatcher.close();
+		this.zoo.close();
+		this.zoo = null;
+		this.view = null;
+		this.member = null;
+		synchronized (this) {
+			this.matching = false;
+		}
+	}
+
+	/**
+	 * Stops the node like a killed process, without leaving the aggregator election. The session and the registration are
+	 * only kept by the server until the session times out if the traffic of the node is discarded meanwhile.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void kill() throws InterruptedException {
+		this.aggregator = null;
+		stop();
+	}
+
+	public boolean isRunning() {
+		return this.zoo != null;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the path of the node this node registers.
+	 */
+	public String getRegistrationPath() {
+		return this.cluster.getParentOf(this.name) + "/" + this.name;
+	}
+
+	public boolean isViewing() {
+		return this.viewing;
+	}
+
+	/**
+	 * Returns the connector of the current session, or null while the node is stopped.
+	 */
+	public ZKConnector getConnector() {
+		return this.zoo;
+	}
+
+	/**
+	 * Returns the number of watch events received by all sessions of this node.
+	 */
+	public long getWatchEvents() {
+		final ZKConnector current = this.zoo;
+		return this.retiredWatchEvents + (current != null ? getWatchEvents(current.getMetrics()) : 0);
+	}
+
+	/**
+	 * Sets the members the view should contain. A view that already matches counts as converged at the given start.
+	 * 
+	 * @param members
+	 * @param startNanos
+	 */
+	synchronized void expect(final Set<String> members, final long startNanos) {
+		this.expected = members;
+		this.matching = this.view != null && this.view.snapshot().getNodes().keySet().equals(members);
+		this.matchedAt = startNanos;
+	}
+
+	synchronized boolean isMatching() {
+		return this.matching;
+	}
+
+	/**
+	 * Returns the time the view has last changed to the expected members.
+	 */
+	synchronized long getMatchedAt() {
+		return this.matchedAt;
+	}
+
+	@Override
+	public synchronized void nodeSetChanged(final NodeSetSnapshot<MemberPayload> snapshot, final List<NodeSetDelta<MemberPayload>> deltas) {
+		final boolean matches = this.expected != null && snapshot.getNodes().keySet().equals(this.expected);
+		if (matches && !this.matching) {
+			this.matchedAt = System.nanoTime();
+		}
+		this.matching = matches;
+	}
+
+	private static long getWatchEvents(final ZKMetrics metrics) {
+		long events = 0;
+		for (final Entry<String, Object> entry : metrics.toMap().entrySet()) {
+			if (entry.getKey().startsWith("watch_events.")) {
+				events += (Long) entry.getValue();
+			}
+		}
+		return events;
+	}
+}
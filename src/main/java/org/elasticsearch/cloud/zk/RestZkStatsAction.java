@@ -0,0 +1,56 @@
+package org.elasticsearch.cloud.zk;
+
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+/**
+ * Returns the ZooKeeper metrics of the local node at /_zk/stats.
+ */
+public class RestZkStatsAction extends BaseRestHandler {
+	private final ZkService	zkService;
+
+	@Inject
+	public RestZkStatsAction(final Settings settings, final Client client, final RestController controller, final ZkService zkService) {
+		super(settings, client);
+		this.zkService = zkService;
+		controller.registerHandler(RestRequest.Method.GET, "/_zk/stats", this);
+	}
+
+	@Override
+	public void handleRequest(final RestRequest request, final RestChannel channel) {
+		try {
+			final XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+			builder.startObject();
+			builder.field("node", nodeName());
+			builder.field("ready", this.zkService.ready().isDone());
+			builder.field("members", this.zkService.getNodes().snapshot().size());
+			builder.field("generation", this.zkService.getNodes().snapshot().getGeneration());
+			builder.startObject("metrics");
+			for (final Entry<String, Object> entry : this.zkService.getMetrics().toMap().entrySet()) {
+				builder.field(entry.getKey(), entry.getValue());
+			}
+			builder.endObject();
+			builder.endObject();
+			channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+		} catch (IOException e) {
+			try {
+				channel.sendResponse(new XContentThrowableRestResponse(request, e));
+			} catch (IOException e1) {
+				this.logger.error("Failed to send failure response", e1);
+			}
+		}
+	}
+}
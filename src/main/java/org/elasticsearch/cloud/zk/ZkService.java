@@ -1,92 +1,467 @@
 package org.elasticsearch.cloud.zk;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchIllegalStateException;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.zookeeper.LeaderElection;
+import org.elasticsearch.zookeeper.MemberPayload;
 import org.elasticsearch.zookeeper.NodeSet;
+import org.elasticsearch.zookeeper.NodeSetAggregator;
+import org.elasticsearch.zookeeper.NodeSetCache;
 import org.elasticsearch.zookeeper.NodeSetMember;
+import org.elasticsearch.zookeeper.WatchDispatcher;
+import org.elasticsearch.zookeeper.ZKConnectionListener;
+import org.elasticsearch.zookeeper.ZKConnectionState;
 import org.elasticsearch.zookeeper.ZKConnector;
+import org.elasticsearch.zookeeper.ZKMetrics;
+import org.elasticsearch.zookeeper.ZKSession;
+import org.elasticsearch.zookeeper.ZKSessionRegistry;
 
 /**
- * This service establishes the actual connection to the ZooKeeper and finds the other nodes of the cluster.
+ * This service establishes the actual connection to the ZooKeeper and finds the other nodes of the cluster. Connecting and
+ * reading the initial membership happen in the background, so that an unreachable ensemble doesn't block the node from
+ * starting. {@link ZkService#ready()} tells when the membership is available.
  */
-public class ZkService extends AbstractLifecycleComponent<ZkService> {
-	private final ZKConnector		zooConnector;
-	private final NodeSet<String>	nodes;
-	private final String			zkPath;
-	private String					nodeAddress;
-	private NodeSetMember			groupMember;
+public class ZkService extends AbstractLifecycleComponent<ZkService> implements ZKConnectionListener {
+	private static final TimeValue					syncRetryDelay	= TimeValue.timeValueSeconds(5);
+	private final ZKSession							session;
+	private final ZKSession							readSession;
+	private final ZKConnector						zooConnector;
+	private final ZKConnector						readConnector;
+	private final WatchDispatcher					dispatcher;
+	private final NodeSet<MemberPayload>			nodes;
+	private final NodeSetAggregator<MemberPayload>	aggregator;
+	private final LeaderElection					masterElection;
+	private final NodeSetCache<MemberPayload>		cache;
+	private final Map<String, MemberPayload>		cachedNodes;
+	private final String							zkPath;
+	private final String							zone;
+	private final boolean							legacyPayload;
+	private final ScheduledExecutorService			startupExecutor;
+	private final ReadyFuture						ready			= new ReadyFuture();
+	private volatile String							nodeAddress;
+	private volatile String							nodeId			= "";
+	private volatile boolean						started;
+	private volatile NodeSetMember					groupMember;
 
 	@Inject
-	public ZkService(final Settings settings, final SettingsFilter settingsFilter) {
+	public ZkService(final Settings settings, final SettingsFilter settingsFilter, final Environment environment) {
 		super(settings);
 		settingsFilter.addFilter(new ZkSettingsFilter());
 
-		final StringBuilder hosts = new StringBuilder();
-		for (String host : settings.getAsArray("cloud.zk.hosts")) {
-			hosts.append(",").append(host);
-		}
-		if (hosts.length() > 1) {
-			this.zooConnector = new ZKConnector(hosts.substring(1));
-		}
-		else {
+		final String hosts = join(settings.getAsArray("cloud.zk.hosts"));
+		if (hosts.length() == 0) {
 			this.logger.error("ZooKeeper Service initialisation failed (hosts: {})", settings.get("cloud.zk.hosts"));
 			throw new RuntimeException("ZooKeeper Service initialisation has failed - no hosts were supplied");
 		}
 
 		this.zkPath = settings.get("cloud.zk.path", "/elasticsearch");
-		this.nodes = new NodeSet<String>(this.zooConnector, this.zkPath);
+		this.zone = settings.get("cloud.zk.zone", settings.get("node.zone", ""));
+		// nodes of older versions can only read the plain address, so it is written until all nodes have been upgraded and
+		// cloud.zk.payload.format has been switched to binary, which is needed for the node id, roles and zone
+		this.legacyPayload = !"binary".equals(settings.get("cloud.zk.payload.format", "string"));
+		final int sessionTimeout = (int) settings.getAsTime("cloud.zk.session_timeout", TimeValue.timeValueSeconds(30)).millis();
+		final long debounce = settings.getAsTime("cloud.zk.watch.debounce", TimeValue.timeValueMillis(100)).millis();
+		final long jitter = settings.getAsTime("cloud.zk.watch.jitter", TimeValue.timeValueMillis(50)).millis();
+		// nodes running in the same JVM share one session per ensemble, each keeps its own registration in it
+		final boolean shared = settings.getAsBoolean("cloud.zk.shared_session", true);
+		this.session = shared ? ZKSessionRegistry.acquire(hosts, sessionTimeout, debounce, jitter) : ZKSessionRegistry
+				.create(hosts, false, sessionTimeout, debounce, jitter);
+		this.zooConnector = this.session.getConnector();
+		this.zooConnector.addListener(this);
+		this.dispatcher = this.session.getDispatcher();
+
+		// the membership can be read from observers, which keep serving reads while the voting members have lost the quorum
+		final String readHosts = join(settings.getAsArray("cloud.zk.read_hosts"));
+		if (readHosts.length() > 0) {
+			this.readSession = shared ? ZKSessionRegistry.acquire(readHosts, true, sessionTimeout, debounce, jitter)
+					: ZKSessionRegistry.create(readHosts, true, sessionTimeout, debounce, jitter);
+			this.readConnector = this.readSession.getConnector();
+			this.readConnector.addListener(this);
+		}
+		else {
+			this.readSession = null;
+			this.readConnector = this.zooConnector;
+		}
+		// all nodes of a cluster have to use the same number of buckets to see each other
+		this.nodes = new NodeSet<MemberPayload>(this.zooConnector, this.readConnector, this.zkPath, MemberPayload.CODEC,
+				settings.getAsBoolean("cloud.zk.fetch.pipelined", true), this.dispatcher, settings.getAsInt("cloud.zk.buckets", 0));
+		// one elected node reads all members and keeps a summary for everybody else
+		this.aggregator = settings.getAsBoolean("cloud.zk.aggregate", false) ? new NodeSetAggregator<MemberPayload>(this.zooConnector,
+				this.nodes, this.zkPath, this.dispatcher) : null;
+		this.masterElection = settings.getAsBoolean("cloud.zk.master_election", false) ? new LeaderElection(this.zooConnector,
+				this.zkPath + "/_master_election", new byte[0], this.dispatcher) : null;
+
+		if (settings.getAsBoolean("cloud.zk.cache.enabled", true)) {
+			final String cacheFile = settings.get("cloud.zk.cache.file");
+			this.cache = new NodeSetCache<MemberPayload>(cacheFile != null ? new File(cacheFile) : new File(
+					environment.workWithClusterFile(), "zk-membership"), MemberPayload.CODEC);
+			this.cachedNodes = this.cache.load();
+			this.nodes.addListener(this.cache);
+		}
+		else {
+			this.cache = null;
+			this.cachedNodes = Collections.emptyMap();
+		}
+
+		this.startupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "zk-startup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		connect(settings.getAsTime("cloud.zk.connect_timeout", TimeValue.timeValueSeconds(30)));
 	}
 
+	/**
+	 * Sets the address other nodes can reach this node at and registers it, if the service is already running.
+	 * 
+	 * @param myAddress
+	 */
 	public void setNodeAddress(final String myAddress) {
 		this.nodeAddress = myAddress;
+		if (this.started && this.ready.isDone() && this.groupMember == null) {
+			registerNode();
+		}
+	}
+
+	/**
+	 * Sets the id of the local cluster node, so that other nodes can match the registered node to the cluster node. The
+	 * registration is updated if it already exists.
+	 * 
+	 * @param id
+	 */
+	public synchronized void setNodeId(final String id) {
+		this.nodeId = id;
+		if (this.groupMember != null && !this.legacyPayload) {
+			this.groupMember.updateValue(createPayload(), MemberPayload.CODEC);
+		}
+		joinMasterElection();
+	}
+
+	/**
+	 * Returns whether the master election via ZooKeeper has been enabled with cloud.zk.master_election.
+	 */
+	public boolean isMasterElectionEnabled() {
+		return this.masterElection != null;
+	}
+
+	/**
+	 * Reads the winner of the master election among the master eligible nodes.
+	 * 
+	 * @return the winner as it has registered, or null if the election isn't enabled, there's no winner or ZooKeeper can't
+	 *         be reached
+	 */
+	public MemberPayload getElectedMaster() {
+		if (this.masterElection == null || !this.ready.isDone() || !this.zooConnector.isConnected()) {
+			return null;
+		}
+		try {
+			final byte[] data = this.masterElection.getLeaderData();
+			return data != null && data.length > 0 ? MemberPayload.CODEC.decode(data) : null;
+		} catch (Exception e) {
+			this.logger.debug("Can't read the winner of the master election", e);
+			return null;
+		}
 	}
 
-	public NodeSet<String> getNodes() {
+	public NodeSet<MemberPayload> getNodes() {
 		return this.nodes;
 	}
 
+	/**
+	 * Returns the latencies and counters recorded by the ZooKeeper layer of this node.
+	 */
+	public ZKMetrics getMetrics() {
+		return this.zooConnector.getMetrics();
+	}
+
+	/**
+	 * Returns the zone this node is registered with, taken from cloud.zk.zone or node.zone, or an empty string if neither is
+	 * set.
+	 */
+	public String getZone() {
+		return this.zone;
+	}
+
+	/**
+	 * Returns the members that have been known when the node was shut down last, which can be used until the current
+	 * membership is {@link ZkService#ready()}.
+	 */
+	public Map<String, MemberPayload> getCachedNodes() {
+		return this.cachedNodes;
+	}
+
+	/**
+	 * Returns a future that completes once the connection to ZooKeeper has been established and the initial membership has
+	 * been read. Failed attempts are retried, the future only fails if the service is closed before.
+	 */
+	public Future<Void> ready() {
+		return this.ready;
+	}
+
+	/**
+	 * Waits for at most the given time for the service to become {@link ZkService#ready()}.
+	 * 
+	 * @param timeout
+	 * @return true if the initial membership is available
+	 */
+	public boolean awaitReady(final TimeValue timeout) {
+		try {
+			this.ready.get(timeout.millis(), TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public void connectionStateChanged(final ZKConnector connector, final ZKConnectionState state) {
+		// a shared session may have been connected before this service was created, so any new connection will do
+		if (!this.ready.isDone() && (state == ZKConnectionState.CONNECTED || state == ZKConnectionState.RECONNECTED
+				|| state == ZKConnectionState.RECOVERED)) {
+			// the initial read waits for responses that are delivered by the event thread we're called from
+			this.startupExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					initialSync();
+				}
+			});
+		}
+	}
+
 	@Override
 	protected void doStart() throws ElasticSearchException {
-		registerNode();
+		if (this.settings.getAsBoolean("cloud.zk.metrics.jmx", true)) {
+			this.session.exposeMetrics(nodeName());
+		}
+		this.started = true;
+		if (this.ready.isDone()) {
+			registerNode();
+		}
 	}
 
 	@Override
 	protected void doStop() throws ElasticSearchException {
+		this.started = false;
 		unregisterNode();
 	}
 
 	@Override
 	protected void doClose() throws ElasticSearchException {
 		unregisterNode();
+		if (this.aggregator != null) {
+			this.aggregator.stop();
+		}
+		this.startupExecutor.shutdownNow();
+		this.ready.fail(new ElasticSearchIllegalStateException("ZooKeeper service has been closed"));
+		// the session is only closed once all nodes in this JVM sharing it have let go of it
+		this.zooConnector.removeListener(this);
+		this.readConnector.removeListener(this);
+		this.nodes.close();
+		if (this.cache != null) {
+			this.cache.close();
+		}
+		this.session.release();
+		if (this.readSession != null) {
+			this.readSession.release();
+		}
+	}
+
+	private void connect(final TimeValue timeout) {
+		final String hosts = this.readSession != null ? this.session.getHosts() + " and " + this.readSession.getHosts() : this.session
+				.getHosts();
+		this.startupExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					boolean connected = ZkService.this.session.connect(timeout.millis());
+					if (ZkService.this.readSession != null) {
+						connected &= ZkService.this.readSession.connect(timeout.millis());
+					}
+					if (connected) {
+						// nobody reports the connection if somebody else sharing the session has connected it already
+						initialSync();
+					}
+					else {
+						ZkService.this.logger.warn("Could not connect to ZooKeeper ({}) within {}, will keep trying in the background",
+								hosts, timeout);
+					}
+				} catch (Exception e) {
+					// ready stays incomplete, the next connection event tries again
+					ZkService.this.logger.error("ZooKeeper Service initialisation failed (hosts: {})", e, hosts);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the initial membership and registers this node if it has been started in the meantime.
+	 */
+	private void initialSync() {
+		// the membership is read through the reading session, but the node registers through the other one
+		if (this.ready.isDone() || !this.zooConnector.isConnected() || !this.readConnector.isConnected()) {
+			return;
+		}
+		try {
+			this.nodes.sync();
+			this.logger.info("Connected to ZooKeeper, found {} registered nodes", this.nodes.snapshot().size());
+			this.ready.complete();
+		} catch (Exception e) {
+			// ready is only failed on close, a failed read is tried again after the next connection event or a delay
+			this.logger.error("Can't read the registered nodes from ZooKeeper path {}, retrying in {}", e, this.zkPath,
+					syncRetryDelay);
+			this.startupExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					initialSync();
+				}
+			}, syncRetryDelay.millis(), TimeUnit.MILLISECONDS);
+			return;
+		}
+		if (this.aggregator != null) {
+			try {
+				this.aggregator.start();
+			} catch (Exception e) {
+				this.logger.warn("Can't join the election of the membership aggregator, will read all nodes directly", e);
+			}
+		}
+		if (this.started) {
+			registerNode();
+		}
 	}
 
 	/**
 	 * Registers a node at a specified ZooKeeper path, so that other nodes can find this node.
 	 */
-	private void registerNode() {
+	private synchronized void registerNode() {
 		if (this.nodeAddress == null) {
-			this.logger.warn("Can't register with ZooKeeper, as I don't know my own address yet");
+			this.logger.info("Can't register with ZooKeeper yet, as I don't know my own address yet");
 			return;
 		}
 		if (this.groupMember != null) {
-			this.logger.warn("Already registered with ZooKeeper, skipping registration");
+			this.logger.debug("Already registered with ZooKeeper, skipping registration");
 			return;
 		}
-		this.groupMember = new NodeSetMember(this.zooConnector, this.zkPath, getZKNodeName(), this.nodeAddress);
+		this.groupMember = new NodeSetMember(this.zooConnector, this.nodes.getParentOf(getZKNodeName()), getZKNodeName(),
+				createPayload(), MemberPayload.CODEC, this.dispatcher);
 		this.groupMember.registerNode();
 		this.logger.info("Registered with ZooKeeper under node {} with address {}", getZKNodeName(), this.nodeAddress);
+		joinMasterElection();
 	}
 
-	private void unregisterNode() {
+	/**
+	 * Joins the master election once this node is registered with its id, if it is master eligible. The winner is announced
+	 * to the other nodes with the same data as the registration.
+	 */
+	private synchronized void joinMasterElection() {
+		if (this.masterElection == null || this.masterElection.isJoined() || this.groupMember == null || this.legacyPayload
+				|| this.nodeId.length() == 0 || (getRoles() & MemberPayload.ROLE_MASTER) == 0) {
+			return;
+		}
+		try {
+			this.masterElection.join(MemberPayload.CODEC.encode(createPayload()));
+		} catch (Exception e) {
+			this.logger.warn("Can't join the master election, zen discovery will elect the master", e);
+		}
+	}
+
+	private synchronized void unregisterNode() {
+		if (this.masterElection != null) {
+			this.masterElection.leave();
+		}
 		if (this.groupMember != null) {
 			this.groupMember.unregisterNode();
+			this.groupMember = null;
 		}
 	}
 
+	private MemberPayload createPayload() {
+		if (this.legacyPayload) {
+			return MemberPayload.legacy(this.nodeAddress);
+		}
+		return MemberPayload.create(Collections.singletonList(this.nodeAddress), this.nodeId, getRoles(), this.zone,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the roles of this node as published to the other nodes, following the node.client, node.master and node.data
+	 * settings.
+	 */
+	private int getRoles() {
+		if (this.settings.getAsBoolean("node.client", false)) {
+			return 0;
+		}
+		int roles = 0;
+		if (this.settings.getAsBoolean("node.master", true)) {
+			roles |= MemberPayload.ROLE_MASTER;
+		}
+		if (this.settings.getAsBoolean("node.data", true)) {
+			roles |= MemberPayload.ROLE_DATA;
+		}
+		return roles;
+	}
+
+	private static String join(final String[] hosts) {
+		final StringBuilder joined = new StringBuilder();
+		for (final String host : hosts) {
+			joined.append(",").append(host);
+		}
+		return joined.length() > 0 ? joined.substring(1) : "";
+	}
+
+	/**
+	 * Returns the name this node registers under, which is its key in {@link ZkService#getNodes()}.
+	 */
+	public String getMemberName() {
+		return getZKNodeName();
+	}
+
 	private String getZKNodeName() {
 		return nodeName().replaceAll("[,|\\.| |']", "").trim();
 	}
+
+	/**
+	 * A future that is completed by the service itself.
+	 */
+	private static class ReadyFuture extends FutureTask<Void> {
+		ReadyFuture() {
+			super(new Runnable() {
+				@Override
+				public void run() {}
+			}, null);
+		}
+
+		void complete() {
+			run();
+		}
+
+		void fail(final Throwable t) {
+			setException(t);
+		}
+	}
 }
@@ -0,0 +1,171 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.zookeeper.MemberPayload;
+
+/**
+ * Keeps the members of the ZooKeeper group and builds the list of nodes to ping from them for
+ * {@link ZkUnicastHostsProvider}. The list is only rebuilt when the membership or any of the resolved addresses have
+ * changed since it has been built last.
+ */
+class DynamicNodeList {
+	private final PingTargetSelector								targetSelector;
+	private final RefreshingCache<String, List<TransportAddress>>	addressCache;
+	private final ESLogger											logger;
+	private final Map<String, MemberPayload>						values				= new HashMap<String, MemberPayload>();
+	private long													generation			= -1;
+	private long													cachedGeneration	= -1;
+	private long													cachedCacheVersion	= -1;
+	private String													cachedAddress;
+	private List<DiscoveryNode>										cachedNodes;
+
+	/**
+	 * @param targetSelector Selects the members to ping
+	 * @param addressCache Resolves the addresses of the members
+	 * @param logger
+	 */
+	DynamicNodeList(final PingTargetSelector targetSelector, final RefreshingCache<String, List<TransportAddress>> addressCache,
+			final ESLogger logger) {
+		this.targetSelector = targetSelector;
+		this.addressCache = addressCache;
+		this.logger = logger;
+	}
+
+	synchronized void memberAdded(final String member, final MemberPayload value) {
+		this.targetSelector.memberAdded(member);
+		memberUpdated(member, null, value);
+	}
+
+	synchronized void memberUpdated(final String member, final MemberPayload oldValue, final MemberPayload value) {
+		this.values.put(member, value);
+		for (final String address : value.getAddresses()) {
+			this.addressCache.prefetch(address);
+		}
+		release(oldValue);
+	}
+
+	synchronized void memberRemoved(final String member, final MemberPayload oldValue) {
+		this.values.remove(member);
+		this.targetSelector.memberRemoved(member);
+		release(oldValue);
+	}
+
+	/**
+	 * Sets the generation of the membership once all of its changes have been applied.
+	 */
+	synchronized void setGeneration(final long generation) {
+		this.generation = generation;
+	}
+
+	/**
+	 * Removes the addresses of the old value from the address cache that no member uses anymore.
+	 */
+	private void release(final MemberPayload oldValue) {
+		if (oldValue == null) {
+			return;
+		}
+		for (final String address : oldValue.getAddresses()) {
+			if (!isInUse(address)) {
+				this.addressCache.remove(address);
+			}
+		}
+	}
+
+	private boolean isInUse(final String address) {
+		for (final MemberPayload payload : this.values.values()) {
+			if (payload.getAddresses().contains(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the list of nodes to ping for the current membership, which is reused as long as neither the membership nor
+	 * any of the resolved addresses have changed. Addresses that haven't been resolved yet are skipped, and the list is
+	 * built again on the next call.
+	 * 
+	 * @param myAddress Members with this address are skipped
+	 * @param memberName Name the local node is registered with, see {@link PingTargetSelector#select(Map, String)}
+	 */
+	synchronized List<DiscoveryNode> build(final String myAddress, final String memberName) {
+		final long cacheVersion = this.addressCache.version();
+		if (this.generation == this.cachedGeneration && cacheVersion == this.cachedCacheVersion && myAddress.equals(this.cachedAddress)) {
+			this.logger.debug("Membership unchanged since generation {}, reusing list of dynamic discovery nodes", this.cachedGeneration);
+			return this.cachedNodes;
+		}
+
+		this.logger.info("Building list of dynamic discovery nodes from ZooKeeper");
+		final List<DiscoveryNode> discoNodes = Lists.newArrayList();
+		final boolean complete = addNodes(discoNodes, this.values, myAddress, memberName, false);
+		// lists with unresolved members are rebuilt on the next ping round
+		this.cachedGeneration = complete ? this.generation : -1;
+		this.cachedCacheVersion = cacheVersion;
+		this.cachedAddress = myAddress;
+		this.cachedNodes = Collections.unmodifiableList(discoNodes);
+		return this.cachedNodes;
+	}
+
+	/**
+	 * Builds the list of nodes to ping for the given members, resolving addresses that haven't been resolved yet right away.
+	 * The list isn't kept.
+	 * 
+	 * @param members
+	 * @param myAddress Members with this address are skipped
+	 * @param memberName Name the local node is registered with, see {@link PingTargetSelector#select(Map, String)}
+	 */
+	List<DiscoveryNode> build(final Map<String, MemberPayload> members, final String myAddress, final String memberName) {
+		final List<DiscoveryNode> discoNodes = Lists.newArrayList();
+		addNodes(discoNodes, members, myAddress, memberName, true);
+		return discoNodes;
+	}
+
+	/**
+	 * Adds the members that should be pinged to the list of nodes.
+	 * 
+	 * @param discoNodes
+	 * @param members
+	 * @param myAddress Members with this address are skipped
+	 * @param memberName
+	 * @param resolve If true addresses that haven't been resolved yet are resolved right away, otherwise they're skipped
+	 * @return false if any address has been skipped
+	 */
+	private boolean addNodes(final List<DiscoveryNode> discoNodes, final Map<String, MemberPayload> members, final String myAddress,
+			final String memberName, final boolean resolve) {
+		boolean complete = true;
+		final Map<String, MemberPayload> others = new HashMap<String, MemberPayload>();
+		for (Entry<String, MemberPayload> entry : members.entrySet()) {
+			if (!entry.getValue().getAddresses().contains(myAddress)) {
+				others.put(entry.getKey(), entry.getValue());
+			}
+		}
+		final List<String> targets = this.targetSelector.select(others, memberName);
+		for (final String member : targets) {
+			int i = 0;
+			for (final String memberAddress : others.get(member).getAddresses()) {
+				final List<TransportAddress> addresses = resolve ? this.addressCache.get(memberAddress) : this.addressCache
+						.getCached(memberAddress);
+				if (addresses == null) {
+					this.logger.debug("Address {} of node \"{}\" hasn't been resolved yet", memberAddress, member);
+					complete = false;
+					continue;
+				}
+				for (TransportAddress address : addresses) {
+					this.logger.debug("Found node \"{}\" with address {}", member, address);
+					discoNodes.add(new DiscoveryNode("#cloud-" + member + "-" + i++, address));
+				}
+			}
+		}
+		this.logger.info("Found {} other nodes via ZooKeeper, pinging {} of them", others.size(), targets.size());
+		return complete;
+	}
+}
@@ -0,0 +1,135 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring of members. Every member is placed on the ring several times, so that adding or removing a member
+ * only changes the neighbours of the few positions it occupies.
+ */
+class HashRing {
+	private final int					virtualNodes;
+	private final TreeMap<Long, String>	ring	= new TreeMap<Long, String>();
+
+	/**
+	 * @param virtualNodes Number of positions each member occupies on the ring
+	 */
+	HashRing(final int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+
+	synchronized void add(final String member) {
+		for (int i = 0; i < this.virtualNodes; i++) {
+			this.ring.put(hash(member + "#" + i), member);
+		}
+	}
+
+	synchronized void remove(final String member) {
+		for (int i = 0; i < this.virtualNodes; i++) {
+			final Long position = hash(member + "#" + i);
+			// another member might have taken the same position
+			if (member.equals(this.ring.get(position))) {
+				this.ring.remove(position);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether all of the given members have been added.
+	 * 
+	 * @param members
+	 */
+	synchronized boolean containsAll(final Collection<String> members) {
+		for (final String member : members) {
+			if (!member.equals(this.ring.get(hash(member + "#0")))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	synchronized int size() {
+		return this.ring.size() / Math.max(1, this.virtualNodes);
+	}
+
+	/**
+	 * Returns the members closest to the first position of the given member on the ring, taken alternately from both
+	 * directions. The member doesn't need to have been added itself.
+	 * 
+	 * @param member
+	 * @param count Maximum number of members to return
+	 * @param allowed Only these members are returned
+	 * @return the members ordered by their distance to the member
+	 */
+	synchronized Set<String> neighbours(final String member, final int count, final Set<String> allowed) {
+		final Set<String> neighbours = new LinkedHashSet<String>();
+		if (this.ring.isEmpty() || count <= 0) {
+			return neighbours;
+		}
+		final long position = hash(member + "#0");
+		final Iterator<String> after = walk(this.ring.tailMap(position, false), this.ring.headMap(position, true));
+		final Iterator<String> before = walk(this.ring.headMap(position, true).descendingMap(), this.ring.tailMap(position, false)
+				.descendingMap());
+		while (neighbours.size() < count && (after.hasNext() || before.hasNext())) {
+			addAllowed(neighbours, after, allowed);
+			if (neighbours.size() < count) {
+				addAllowed(neighbours, before, allowed);
+			}
+		}
+		return neighbours;
+	}
+
+	private static void addAllowed(final Set<String> neighbours, final Iterator<String> it, final Set<String> allowed) {
+		while (it.hasNext()) {
+			final String member = it.next();
+			if (allowed.contains(member) && neighbours.add(member)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Iterates over the members of the first map and then over the members of the second one, which together is one full
+	 * round over the ring.
+	 */
+	private static Iterator<String> walk(final NavigableMap<Long, String> first, final NavigableMap<Long, String> second) {
+		final Iterator<Entry<Long, String>> firstIt = first.entrySet().iterator();
+		final Iterator<Entry<Long, String>> secondIt = second.entrySet().iterator();
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return firstIt.hasNext() || secondIt.hasNext();
+			}
+
+			@Override
+			public String next() {
+				return firstIt.hasNext() ? firstIt.next().getValue() : secondIt.next().getValue();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * 64 bit FNV-1a, followed by a final mix so that similar names are spread over the whole ring.
+	 */
+	static long hash(final String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,223 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.zookeeper.MemberPayload;
+
+/**
+ * Decides which of the registered members are pinged during discovery. Only master eligible nodes take part in the master
+ * election, so pinging those is enough to find or elect a master and keeps the ping traffic from growing with the number
+ * of data and client nodes.
+ * <p>
+ * If the zone of the local node is known, members of the same zone are returned first, so that they're contacted first. The
+ * number of members per zone can be limited, master eligible members are never dropped by that limit.
+ */
+class PingTargetSelector {
+	enum Mode {
+		/**
+		 * Ping all registered members.
+		 */
+		ALL,
+		/**
+		 * Ping only master eligible members. Members that registered without roles are treated as master eligible.
+		 */
+		MASTER_ELIGIBLE,
+		/**
+		 * Ping master eligible members and a random sample of the other members.
+		 */
+		MASTER_ELIGIBLE_SAMPLE,
+		/**
+		 * Ping dedicated master nodes and the members next to the local node on a consistent hash ring, so that the number
+		 * of pinged members stays the same no matter how large the cluster grows. Without dedicated master nodes a cluster
+		 * should use the ZooKeeper master election or discovery.zen.minimum_master_nodes in this mode, as a node starting
+		 * a new cluster only sees its neighbours.
+		 */
+		RING;
+
+		static Mode parse(final String mode) {
+			try {
+				return valueOf(mode.toUpperCase(Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				throw new ElasticSearchIllegalArgumentException("Unknown ping target mode [" + mode + "]");
+			}
+		}
+	}
+
+	private static final int	virtualNodes	= 16;
+	private final Mode			mode;
+	private final int			sampleSize;
+	private final String		localZone;
+	private final int			zoneCap;
+	private final Random		random;
+	private final HashRing		ring;
+
+	/**
+	 * @param mode
+	 * @param sampleSize Number of members that are not master eligible to ping in {@link Mode#MASTER_ELIGIBLE_SAMPLE}, or
+	 *            the number of ring neighbours in {@link Mode#RING}
+	 * @param localZone Zone of the local node, or an empty string if it's unknown
+	 * @param zoneCap Maximum number of members per zone, or 0 for no limit
+	 * @param random
+	 */
+	PingTargetSelector(final Mode mode, final int sampleSize, final String localZone, final int zoneCap, final Random random) {
+		this.mode = mode;
+		this.sampleSize = sampleSize;
+		this.localZone = localZone;
+		this.zoneCap = zoneCap;
+		this.random = random;
+		this.ring = mode == Mode.RING ? new HashRing(virtualNodes) : null;
+	}
+
+	/**
+	 * Places a new member on the ring, has to be called for every member joining the group.
+	 * 
+	 * @param member
+	 */
+	void memberAdded(final String member) {
+		if (this.ring != null) {
+			this.ring.add(member);
+		}
+	}
+
+	/**
+	 * Removes a member from the ring, has to be called for every member leaving the group.
+	 * 
+	 * @param member
+	 */
+	void memberRemoved(final String member) {
+		if (this.ring != null) {
+			this.ring.remove(member);
+		}
+	}
+
+	/**
+	 * @param members All known members except for the local node
+	 * @param localMember Name the local node is registered under, which is its position on the ring
+	 * @return the names of the members that should be pinged, members of the local zone first
+	 */
+	List<String> select(final Map<String, MemberPayload> members, final String localMember) {
+		final List<String> targets = filter(members, localMember);
+		if (this.localZone.length() == 0 && this.zoneCap <= 0) {
+			return targets;
+		}
+		return arrange(targets, members);
+	}
+
+	private List<String> filter(final Map<String, MemberPayload> members, final String localMember) {
+		if (this.mode == Mode.ALL) {
+			return new ArrayList<String>(members.keySet());
+		}
+		if (this.mode == Mode.RING) {
+			final List<String> targets = new ArrayList<String>();
+			final Set<String> candidates = new HashSet<String>();
+			for (final Entry<String, MemberPayload> entry : members.entrySet()) {
+				if (isDedicatedMaster(entry.getValue())) {
+					targets.add(entry.getKey());
+				}
+				else {
+					candidates.add(entry.getKey());
+				}
+			}
+			// members that haven't been reported as added, like the ones cached at the last shutdown, get a ring of their own
+			final HashRing ring;
+			if (this.ring.containsAll(candidates)) {
+				ring = this.ring;
+			}
+			else {
+				ring = new HashRing(virtualNodes);
+				for (final String candidate : candidates) {
+					ring.add(candidate);
+				}
+			}
+			targets.addAll(ring.neighbours(localMember, this.sampleSize, candidates));
+			return targets;
+		}
+
+		final List<String> masters = new ArrayList<String>();
+		final List<String> others = new ArrayList<String>();
+		for (final Entry<String, MemberPayload> entry : members.entrySet()) {
+			if (isMasterEligible(entry.getValue())) {
+				masters.add(entry.getKey());
+			}
+			else {
+				others.add(entry.getKey());
+			}
+		}
+		if (masters.isEmpty()) {
+			// without any master eligible node there's nobody to find the cluster through, so fall back to everybody
+			return others;
+		}
+		if (this.mode == Mode.MASTER_ELIGIBLE_SAMPLE && !others.isEmpty()) {
+			Collections.shuffle(others, this.random);
+			masters.addAll(others.subList(0, Math.min(this.sampleSize, others.size())));
+		}
+
+		return masters;
+	}
+
+	/**
+	 * Orders the members by zone, local zone first, and drops the members exceeding the cap of their zone.
+	 */
+	private List<String> arrange(final List<String> targets, final Map<String, MemberPayload> members) {
+		final Map<String, String> zones = new HashMap<String, String>();
+		for (final String target : targets) {
+			zones.put(target, members.get(target).getZone());
+		}
+		Collections.sort(targets, new Comparator<String>() {
+			@Override
+			public int compare(final String a, final String b) {
+				final String zoneA = zones.get(a);
+				final String zoneB = zones.get(b);
+				if (!zoneA.equals(zoneB)) {
+					if (zoneA.equals(PingTargetSelector.this.localZone)) {
+						return -1;
+					}
+					if (zoneB.equals(PingTargetSelector.this.localZone)) {
+						return 1;
+					}
+					return zoneA.compareTo(zoneB);
+				}
+				// masters first, so that they're kept when the zone is capped
+				final boolean masterA = isMasterEligible(members.get(a));
+				if (masterA != isMasterEligible(members.get(b))) {
+					return masterA ? -1 : 1;
+				}
+				return a.compareTo(b);
+			}
+		});
+		if (this.zoneCap <= 0) {
+			return targets;
+		}
+
+		final List<String> capped = new ArrayList<String>(targets.size());
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (final String target : targets) {
+			final String zone = zones.get(target);
+			final int count = counts.containsKey(zone) ? counts.get(zone) : 0;
+			if (count < this.zoneCap || isMasterEligible(members.get(target))) {
+				capped.add(target);
+				counts.put(zone, count + 1);
+			}
+		}
+		return capped;
+	}
+
+	static boolean isMasterEligible(final MemberPayload payload) {
+		return !payload.hasRoles() || (payload.getRoles() & MemberPayload.ROLE_MASTER) != 0;
+	}
+
+	static boolean isDedicatedMaster(final MemberPayload payload) {
+		return payload.hasRoles() && payload.getRoles() == MemberPayload.ROLE_MASTER;
+	}
+}
@@ -0,0 +1,134 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.logging.ESLogger;
+
+/**
+ * Caches values that are expensive to look up, like resolved host names. Expired values are still returned while they are
+ * reloaded in the background, and if a reload fails the last good value is kept. Every change of a cached value increases
+ * the {@link RefreshingCache#version()}.
+ */
+abstract class RefreshingCache<K, V> {
+	private final ConcurrentMap<K, Entry<V>>	entries	= new ConcurrentHashMap<K, Entry<V>>();
+	private final AtomicLong					version	= new AtomicLong();
+	private final Executor						executor;
+	private final long							ttl;
+	private final ESLogger						logger;
+
+	/**
+	 * @param executor Runs the background reloads
+	 * @param ttl Time in milliseconds after which a value is reloaded
+	 * @param logger
+	 */
+	RefreshingCache(final Executor executor, final long ttl, final ESLogger logger) {
+		this.executor = executor;
+		this.ttl = ttl;
+		this.logger = logger;
+	}
+
+	/**
+	 * Looks up the value for a key. Only called by a single thread per key at a time.
+	 * 
+	 * @throws Exception if the lookup failed
+	 */
+	protected abstract V load(K key) throws Exception;
+
+	/**
+	 * Returns the cached value, loading it in the calling thread if it has never been loaded before.
+	 * 
+	 * @return the value or null if it couldn't be loaded
+	 */
+	V get(final K key) {
+		Entry<V> entry = this.entries.get(key);
+		if (entry == null) {
+			entry = newEntry(key);
+			if (entry.loading.compareAndSet(false, true)) {
+				reload(key, entry);
+			}
+		}
+		return getCached(key);
+	}
+
+	/**
+	 * Returns the cached value without ever blocking on a lookup. Missing and expired values are loaded in the background.
+	 * 
+	 * @return the value or null if it hasn't been loaded successfully yet
+	 */
+	V getCached(final K key) {
+		Entry<V> entry = this.entries.get(key);
+		if (entry == null) {
+			entry = newEntry(key);
+		}
+		if (System.currentTimeMillis() - entry.loadedAt > this.ttl || entry.value == null) {
+			reloadInBackground(key, entry);
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Starts loading the value in the background, if it isn't cached yet.
+	 */
+	void prefetch(final K key) {
+		getCached(key);
+	}
+
+	void remove(final K key) {
+		this.entries.remove(key);
+	}
+
+	/**
+	 * Returns a counter that is increased every time a cached value changes.
+	 */
+	long version() {
+		return this.version.get();
+	}
+
+	private Entry<V> newEntry(final K key) {
+		final Entry<V> entry = new Entry<V>();
+		final Entry<V> existing = this.entries.putIfAbsent(key, entry);
+		return existing != null ? existing : entry;
+	}
+
+	private void reloadInBackground(final K key, final Entry<V> entry) {
+		if (!entry.loading.compareAndSet(false, true)) {
+			return;
+		}
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				reload(key, entry);
+			}
+		});
+	}
+
+	private void reload(final K key, final Entry<V> entry) {
+		try {
+			final V value = load(key);
+			if (entry.value == null || !entry.value.equals(value)) {
+				entry.value = value;
+				this.version.incrementAndGet();
+			}
+		} catch (Exception e) {
+			if (entry.value != null) {
+				this.logger.warn("Can't refresh {}, keeping last known value {}", key, entry.value);
+			}
+			else {
+				this.logger.warn("Can't resolve {}", key);
+			}
+		} finally {
+			entry.loadedAt = System.currentTimeMillis();
+			entry.loading.set(false);
+		}
+	}
+
+	private static class Entry<V> {
+		private final AtomicBoolean	loading	= new AtomicBoolean();
+		private volatile V			value;
+		private volatile long		loadedAt;
+	}
+}
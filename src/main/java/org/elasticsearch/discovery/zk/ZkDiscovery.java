@@ -1,5 +1,6 @@
 package org.elasticsearch.discovery.zk;
 
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.cloud.zk.ZkService;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.ClusterService;
@@ -19,6 +20,8 @@ import org.elasticsearch.transport.TransportService;
  * Registers ZooKeeper discovery as a ping resolver.
  */
 public class ZkDiscovery extends ZenDiscovery {
+	private final ZkService	zkService;
+
 	@Inject
 	public ZkDiscovery(final Settings settings, final ClusterName clusterName, final ThreadPool threadPool,
 			final TransportService transportService, final ClusterService clusterService, final NodeSettingsService nodeSettingsService,
@@ -26,6 +29,7 @@ public class ZkDiscovery extends ZenDiscovery {
 		super(settings, clusterName, threadPool, transportService, clusterService, nodeSettingsService, discoveryNodeService, pingService);
 
 		this.logger.info("Setting up ZkDiscovery");
+		this.zkService = ec2Service;
 		if (settings.getAsBoolean("cloud.zk.enabled", false)) {
 			final ImmutableList<? extends ZenPing> zenPings = pingService.zenPings();
 			UnicastZenPing unicastZenPing = null;
@@ -37,12 +41,29 @@ public class ZkDiscovery extends ZenDiscovery {
 			}
 			if (unicastZenPing != null) {
 				this.logger.info("Added ZkUnicastHostsProvider to zen pings");
-				unicastZenPing.addHostsProvider(new ZkUnicastHostsProvider(settings, transportService, ec2Service));
-				pingService.zenPings(ImmutableList.of(unicastZenPing));
+				unicastZenPing.addHostsProvider(new ZkUnicastHostsProvider(settings, threadPool, transportService, ec2Service));
+				if (ec2Service.isMasterElectionEnabled()) {
+					this.logger.info("Using the ZooKeeper master election for zen pings");
+					pingService.zenPings(ImmutableList.of(new ZkZenPing(settings, unicastZenPing, ec2Service, clusterName)));
+				}
+				else {
+					pingService.zenPings(ImmutableList.of(unicastZenPing));
+				}
 			}
 			else {
 				this.logger.warn("failed to apply zk unicast discovery, no unicast ping found");
 			}
+			if (settings.getAsBoolean("cloud.zk.fast_failure_detection", true)) {
+				ec2Service.getNodes().addListener(new ZkFaultDetection(settings, this, transportService,
+						threadPool.executor(ThreadPool.Names.GENERIC)));
+			}
 		}
 	}
+
+	@Override
+	protected void doStart() throws ElasticSearchException {
+		super.doStart();
+		// the id is only known once the local node has been created
+		this.zkService.setNodeId(localNode().id());
+	}
 }
@@ -0,0 +1,164 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.io.stream.VoidStreamable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.discovery.zen.DiscoveryNodesProvider;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.elasticsearch.zookeeper.NodeSetDelta;
+import org.elasticsearch.zookeeper.NodeSetListener;
+import org.elasticsearch.zookeeper.NodeSetSnapshot;
+
+/**
+ * Lets the master react as soon as a node has left ZooKeeper, instead of waiting for the zen fault detection to time out.
+ * The master checks the cluster node that belongs to a removed member right away, as the member may also be gone because
+ * the node has only lost its ZooKeeper session. Only if the node doesn't answer within the zen ping timeout, the master
+ * disconnects from it, which makes the zen fault detection remove it from the cluster.
+ */
+class ZkFaultDetection extends AbstractComponent implements NodeSetListener<MemberPayload> {
+	static final String						CHECK_ACTION	= "discovery/zk/fd/check";
+	private final DiscoveryNodesProvider	nodesProvider;
+	private final TransportService			transportService;
+	private final Executor					executor;
+	private final TimeValue					checkTimeout;
+
+	ZkFaultDetection(final Settings settings, final DiscoveryNodesProvider nodesProvider, final TransportService transportService,
+			final Executor executor) {
+		super(settings);
+		this.nodesProvider = nodesProvider;
+		this.transportService = transportService;
+		this.executor = executor;
+		this.checkTimeout = settings.getAsTime("discovery.zen.fd.ping_timeout", TimeValue.timeValueSeconds(30));
+		transportService.registerHandler(CHECK_ACTION, new CheckRequestHandler());
+	}
+
+	@Override
+	public void nodeSetChanged(final NodeSetSnapshot<MemberPayload> snapshot, final List<NodeSetDelta<MemberPayload>> deltas) {
+		for (final NodeSetDelta<MemberPayload> delta : deltas) {
+			if (delta.getType() != NodeSetDelta.Type.REMOVED) {
+				continue;
+			}
+			// disconnecting may block, and we might be called on the ZooKeeper event thread
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					memberRemoved(delta.getNode(), delta.getOldValue());
+				}
+			});
+		}
+	}
+
+	private void memberRemoved(final String member, final MemberPayload payload) {
+		final DiscoveryNodes nodes = this.nodesProvider.nodes();
+		if (nodes == null || !nodes.localNodeMaster()) {
+			return;
+		}
+		final DiscoveryNode node = findNode(nodes, payload);
+		if (node == null || node.id().equals(nodes.localNode().id())) {
+			return;
+		}
+		this.logger.info("Node \"{}\" has left ZooKeeper, checking cluster node {}", member, node);
+		checkNode(member, node);
+	}
+
+	/**
+	 * Sends a check to the node and disconnects from it if there's no answer in time. Any answer counts, also an error of
+	 * a node that doesn't know the check, as it proves that the node can be reached.
+	 */
+	private void checkNode(final String member, final DiscoveryNode node) {
+		this.transportService.sendRequest(node, CHECK_ACTION, VoidStreamable.INSTANCE,
+				TransportRequestOptions.options().withTimeout(this.checkTimeout), new BaseTransportResponseHandler<VoidStreamable>() {
+					@Override
+					public VoidStreamable newInstance() {
+						return VoidStreamable.INSTANCE;
+					}
+
+					@Override
+					public void handleResponse(final VoidStreamable response) {
+						nodeReachable(member, node);
+					}
+
+					@Override
+					public void handleException(final TransportException exp) {
+						if (exp instanceof RemoteTransportException) {
+							nodeReachable(member, node);
+							return;
+						}
+						ZkFaultDetection.this.logger.info("Cluster node {} of removed node \"{}\" can't be reached, disconnecting",
+								exp, node, member);
+						ZkFaultDetection.this.transportService.disconnectFromNode(node);
+					}
+
+					@Override
+					public String executor() {
+						return ThreadPool.Names.SAME;
+					}
+				});
+	}
+
+	private void nodeReachable(final String member, final DiscoveryNode node) {
+		this.logger.info("Node \"{}\" has left ZooKeeper, but cluster node {} can still be reached", member, node);
+	}
+
+	/**
+	 * Finds the cluster node by the id the member has registered with, or by its address for members that didn't register
+	 * an id.
+	 */
+	private DiscoveryNode findNode(final DiscoveryNodes nodes, final MemberPayload payload) {
+		final String id = payload.getNodeId();
+		if (id != null && id.length() > 0) {
+			return nodes.get(id);
+		}
+		for (final String address : payload.getAddresses()) {
+			final List<TransportAddress> addresses;
+			try {
+				addresses = Arrays.asList(this.transportService.addressesFromString(address));
+			} catch (Exception e) {
+				this.logger.debug("Can't resolve address {} of a removed node", e, address);
+				continue;
+			}
+			for (final DiscoveryNode node : nodes) {
+				if (addresses.contains(node.address())) {
+					return node;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Answers the checks of the master.
+	 */
+	private static class CheckRequestHandler extends BaseTransportRequestHandler<VoidStreamable> {
+		@Override
+		public VoidStreamable newInstance() {
+			return VoidStreamable.INSTANCE;
+		}
+
+		@Override
+		public void messageReceived(final VoidStreamable request, final TransportChannel channel) throws Exception {
+			channel.sendResponse(VoidStreamable.INSTANCE);
+		}
+
+		@Override
+		public String executor() {
+			return ThreadPool.Names.SAME;
+		}
+	}
+}
@@ -1,65 +1,130 @@
 package org.elasticsearch.discovery.zk;
 
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
 
 import org.elasticsearch.cloud.zk.ZkService;
 import org.elasticsearch.cluster.node.DiscoveryNode;
-import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.discovery.zen.ping.unicast.UnicastHostsProvider;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.elasticsearch.zookeeper.NodeSetDelta;
+import org.elasticsearch.zookeeper.NodeSetListener;
+import org.elasticsearch.zookeeper.NodeSetSnapshot;
 
 /**
- * Is used to register this node and create a list of available nodes in the cluster.
+ * Is used to register this node and create a list of available nodes in the cluster. The list is maintained incrementally
+ * from the changes reported by the {@link ZkService}'s node set.
  */
-public class ZkUnicastHostsProvider extends AbstractComponent implements UnicastHostsProvider {
-	private final TransportService	transportService;
-	private final ZkService			zkService;
-	private final String			hostname;
+public class ZkUnicastHostsProvider extends AbstractComponent implements UnicastHostsProvider, NodeSetListener<MemberPayload> {
+	private final TransportService									transportService;
+	private final ZkService											zkService;
+	private final String											hostname;
+	private final TimeValue											readyTimeout;
+	private final RefreshingCache<String, List<TransportAddress>>	addressCache;
+	private final RefreshingCache<String, String>					selfAddressCache;
+	private final DynamicNodeList									dynamicNodes;
 
-	public ZkUnicastHostsProvider(final Settings settings, final TransportService transportService, final ZkService zkService) {
+	public ZkUnicastHostsProvider(final Settings settings, final ThreadPool threadPool, final TransportService transportService,
+			final ZkService zkService) {
 		super(settings);
 		this.hostname = settings.get("cloud.zk.hostname", "");
+		this.readyTimeout = settings.getAsTime("cloud.zk.ready_timeout", TimeValue.timeValueSeconds(3));
 		this.zkService = zkService;
 		this.transportService = transportService;
+		final PingTargetSelector.Mode mode = PingTargetSelector.Mode.parse(settings.get("cloud.zk.ping.targets", "all"));
+		final int size = mode == PingTargetSelector.Mode.RING ? settings.getAsInt("cloud.zk.ping.ring_neighbours", 4) : settings
+				.getAsInt("cloud.zk.ping.sample_size", 5);
+		final PingTargetSelector targetSelector = new PingTargetSelector(mode, size, zkService.getZone(), settings.getAsInt(
+				"cloud.zk.ping.zone_cap", 0), new Random());
+
+		final Executor executor = threadPool.executor(ThreadPool.Names.GENERIC);
+		final long ttl = settings.getAsTime("cloud.zk.address_cache.ttl", TimeValue.timeValueMinutes(5)).millis();
+		this.addressCache = new RefreshingCache<String, List<TransportAddress>>(executor, ttl, this.logger) {
+			@Override
+			protected List<TransportAddress> load(final String value) throws Exception {
+				return Arrays.asList(ZkUnicastHostsProvider.this.transportService.addressesFromString(value));
+			}
+		};
+		this.selfAddressCache = new RefreshingCache<String, String>(executor, ttl, this.logger) {
+			@Override
+			protected String load(final String key) throws Exception {
+				return detectMyAddress();
+			}
+		};
+		this.dynamicNodes = new DynamicNodeList(targetSelector, this.addressCache, this.logger);
+		for (final MemberPayload payload : zkService.getCachedNodes().values()) {
+			for (final String address : payload.getAddresses()) {
+				this.addressCache.prefetch(address);
+			}
+		}
+		zkService.getNodes().addListener(this);
 	}
 
 	@Override
-	public List<DiscoveryNode> buildDynamicNodes() {
-		this.logger.info("Building list of dynamic discovery nodes from ZooKeeper");
-		final String myAddress = getMyAddress();
-		this.zkService.setNodeAddress(myAddress);
-
-		final List<DiscoveryNode> discoNodes = Lists.newArrayList();
-		int clientCount = 0;
-		for (Entry<String, String> entry : this.zkService.getNodes()) {
-			if (entry.getValue().equals(myAddress)) {
-				continue;
+	public synchronized void nodeSetChanged(final NodeSetSnapshot<MemberPayload> snapshot, final List<NodeSetDelta<MemberPayload>> deltas) {
+		for (final NodeSetDelta<MemberPayload> delta : deltas) {
+			this.logger.debug("ZooKeeper membership changed: {}", delta);
+			if (delta.getType() == NodeSetDelta.Type.REMOVED) {
+				this.dynamicNodes.memberRemoved(delta.getNode(), delta.getOldValue());
 			}
-			clientCount++;
-			try {
-				int i = 0;
-				for (TransportAddress address : this.transportService.addressesFromString(entry.getValue())) {
-					this.logger.debug("Found node \"{}\" with address {}", entry.getKey(), address);
-					discoNodes.add(new DiscoveryNode("#cloud-" + entry.getKey() + "-" + i++, address));
-				}
-			} catch (Exception e) {
-				this.logger.warn("Can't add address {} as valid DiscoveryNode", entry.getValue());
+			else if (delta.getType() == NodeSetDelta.Type.ADDED) {
+				this.dynamicNodes.memberAdded(delta.getNode(), delta.getNewValue());
+			}
+			else {
+				this.dynamicNodes.memberUpdated(delta.getNode(), delta.getOldValue(), delta.getNewValue());
 			}
 		}
-		this.logger.info("Found {} other nodes via ZooKeeper", clientCount);
+		this.dynamicNodes.setGeneration(snapshot.getGeneration());
+	}
 
-		return discoNodes;
+	/**
+	 * Returns the list of nodes that was built for the current membership. The list is only rebuilt when the membership or
+	 * any of the resolved addresses have changed since the last call. Addresses are resolved in the background, so no name
+	 * lookups happen during a ping round. Until the membership has been read from ZooKeeper, the members known at the last
+	 * shutdown are used without waiting for ZooKeeper.
+	 */
+	@Override
+	public List<DiscoveryNode> buildDynamicNodes() {
+		final long start = System.nanoTime();
+		try {
+			return buildDynamicNodesTimed();
+		} finally {
+			this.zkService.getMetrics().getDiscovery().recordSince(start);
+		}
 	}
 
-	private String getMyAddress() {
-		if (!this.hostname.isEmpty()) {
-			return this.hostname;
+	private List<DiscoveryNode> buildDynamicNodesTimed() {
+		final String myAddress = this.hostname.isEmpty() ? this.selfAddressCache.get(this.hostname) : this.hostname;
+		if (myAddress == null) {
+			this.logger.warn("Can't detect my own address, no nodes have been added to this ping round");
+			return Collections.emptyList();
 		}
+		this.zkService.setNodeAddress(myAddress);
+		// wait outside of the lock, the initial membership is delivered through nodeSetChanged()
+		final Map<String, MemberPayload> cachedNodes = this.zkService.getCachedNodes();
+		if (!this.zkService.awaitReady(cachedNodes.isEmpty() ? this.readyTimeout : TimeValue.timeValueMillis(0))) {
+			if (cachedNodes.isEmpty()) {
+				this.logger.warn("ZooKeeper membership is not available yet, no nodes have been added to this ping round");
+				return Collections.emptyList();
+			}
+			this.logger.info("ZooKeeper membership is not available yet, using {} cached nodes", cachedNodes.size());
+			return this.dynamicNodes.build(cachedNodes, myAddress, this.zkService.getMemberName());
+		}
+		return this.dynamicNodes.build(myAddress, this.zkService.getMemberName());
+	}
+
+	private String detectMyAddress() {
 		this.logger.info("Hostname has not been set - autodetecting my address");
 		String myIpAddress = this.transportService.boundAddress().publishAddress().toString();
 		myIpAddress = myIpAddress.substring(6, myIpAddress.length() - 1);
@@ -0,0 +1,144 @@
+package org.elasticsearch.discovery.zk;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.cloud.zk.ZkService;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.discovery.zen.DiscoveryNodesProvider;
+import org.elasticsearch.discovery.zen.ping.ZenPing;
+import org.elasticsearch.zookeeper.MemberPayload;
+
+/**
+ * Adds the winner of the ZooKeeper master election as master to the responses of the wrapped zen ping, so that all nodes
+ * join the winner instead of tie breaking between the nodes they have pinged. As zen discovery accepts a reported master
+ * without checking discovery.zen.minimum_master_nodes, the winner is only added if it has answered the ping itself or is
+ * the local node, no other node reports a master, and enough master eligible nodes have answered. Otherwise, or if joining
+ * the winner has failed repeatedly, the responses are passed on unchanged.
+ */
+class ZkZenPing extends AbstractLifecycleComponent<ZenPing> implements ZenPing {
+	// shortcuts to the same winner further apart than this are not counted as failed attempts
+	private static final long		attemptWindow	= 60000;
+	private final ZenPing			delegate;
+	private final ZkService			zkService;
+	private final ClusterName		clusterName;
+	private final int				maxAttempts;
+	private final int				minimumMasterNodes;
+	private DiscoveryNodesProvider	nodesProvider;
+	private String					lastWinner;
+	private int						attempts;
+	private long					lastAttempt;
+
+	ZkZenPing(final Settings settings, final ZenPing delegate, final ZkService zkService, final ClusterName clusterName) {
+		super(settings);
+		this.delegate = delegate;
+		this.zkService = zkService;
+		this.clusterName = clusterName;
+		this.maxAttempts = settings.getAsInt("cloud.zk.master_election.attempts", 3);
+		this.minimumMasterNodes = settings.getAsInt("discovery.zen.minimum_master_nodes", -1);
+	}
+
+	@Override
+	public void setNodesProvider(final DiscoveryNodesProvider nodesProvider) {
+		this.nodesProvider = nodesProvider;
+		this.delegate.setNodesProvider(nodesProvider);
+	}
+
+	@Override
+	public void ping(final PingListener listener, final TimeValue timeout) throws ElasticSearchException {
+		final String winner = getWinner();
+		if (winner == null) {
+			this.delegate.ping(listener, timeout);
+			return;
+		}
+		final DiscoveryNode localNode = this.nodesProvider.nodes().localNode();
+		this.delegate.ping(new PingListener() {
+			@Override
+			public void onPing(final PingResponse[] pings) {
+				listener.onPing(addWinner(pings, winner, localNode));
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Returns the responses with the winner added as master if it is safe to do so, otherwise the responses as they are.
+	 */
+	private PingResponse[] addWinner(final PingResponse[] pings, final String winner, final DiscoveryNode localNode) {
+		DiscoveryNode winnerNode = winner.equals(localNode.id()) ? localNode : null;
+		final Set<String> masterNodes = new HashSet<String>();
+		if (localNode.masterNode()) {
+			masterNodes.add(localNode.id());
+		}
+		for (final PingResponse ping : pings) {
+			if (ping.master() != null) {
+				return pings;
+			}
+			if (ping.target().masterNode()) {
+				masterNodes.add(ping.target().id());
+			}
+			if (ping.target().id().equals(winner)) {
+				winnerNode = ping.target();
+			}
+		}
+		if (winnerNode == null) {
+			this.logger.debug("Winner {} of the ZooKeeper master election hasn't answered the ping", winner);
+			return pings;
+		}
+		if (masterNodes.size() < this.minimumMasterNodes) {
+			this.logger.debug("Only {} of {} master eligible nodes have answered, not joining {}, the winner of the ZooKeeper master "
+					+ "election", masterNodes.size(), this.minimumMasterNodes, winnerNode);
+			return pings;
+		}
+		this.logger.debug("Joining {}, the winner of the ZooKeeper master election", winnerNode);
+		final PingResponse[] responses = Arrays.copyOf(pings, pings.length + 1);
+		responses[pings.length] = new PingResponse(winnerNode, winnerNode, this.clusterName);
+		return responses;
+	}
+
+	/**
+	 * Returns the node id of the winner of the master election, unless the same winner has been returned too often in a row,
+	 * which means that it didn't accept our joins.
+	 */
+	private synchronized String getWinner() {
+		final MemberPayload payload = this.zkService.getElectedMaster();
+		if (payload == null || payload.getNodeId().length() == 0) {
+			return null;
+		}
+
+		final long now = System.currentTimeMillis();
+		if (!payload.getNodeId().equals(this.lastWinner) || now - this.lastAttempt > attemptWindow) {
+			this.lastWinner = payload.getNodeId();
+			this.attempts = 0;
+		}
+		this.lastAttempt = now;
+		if (++this.attempts > this.maxAttempts) {
+			if (this.attempts == this.maxAttempts + 1) {
+				this.logger.info("Winner {} of the ZooKeeper master election hasn't accepted us as member, falling back to zen pings",
+						payload);
+			}
+			return null;
+		}
+		return payload.getNodeId();
+	}
+
+	@Override
+	protected void doStart() throws ElasticSearchException {
+		this.delegate.start();
+	}
+
+	@Override
+	protected void doStop() throws ElasticSearchException {
+		this.delegate.stop();
+	}
+
+	@Override
+	protected void doClose() throws ElasticSearchException {
+		this.delegate.close();
+	}
+}
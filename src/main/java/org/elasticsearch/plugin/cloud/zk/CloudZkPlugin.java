@@ -2,6 +2,7 @@ package org.elasticsearch.plugin.cloud.zk;
 
 import java.util.Collection;
 
+import org.elasticsearch.cloud.zk.RestZkStatsAction;
 import org.elasticsearch.cloud.zk.ZkModule;
 import org.elasticsearch.cloud.zk.ZkService;
 import org.elasticsearch.common.collect.Lists;
@@ -9,6 +10,7 @@ import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 
 /**
  * Registers the discovery module with elastic search.
@@ -40,6 +42,12 @@ public class CloudZkPlugin extends AbstractPlugin {
 		return modules;
 	}
 
+	public void onModule(final RestModule module) {
+		if (this.settings.getAsBoolean("cloud.zk.enabled", false)) {
+			module.addRestAction(RestZkStatsAction.class);
+		}
+	}
+
 	@SuppressWarnings("rawtypes")
 	@Override
 	public Collection<Class<? extends LifecycleComponent>> services() {
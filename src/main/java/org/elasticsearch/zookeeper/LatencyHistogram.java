@@ -0,0 +1,73 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations with one bucket per power of two nanoseconds. Recording a value only costs a few
+ * atomic increments, percentiles are accurate to a factor of two, which is enough to tell a slow ensemble from a fast one.
+ */
+public class LatencyHistogram {
+	private static final int		bucketCount	= 64;
+	private final AtomicLongArray	buckets		= new AtomicLongArray(bucketCount);
+	private final AtomicLong		count		= new AtomicLong();
+	private final AtomicLong		sum			= new AtomicLong();
+	private final AtomicLong		max			= new AtomicLong();
+
+	/**
+	 * @param nanos Duration to record
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		this.buckets.incrementAndGet(Math.min(bucketCount - 1, 64 - Long.numberOfLeadingZeros(value)));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value)) {
+			current = this.max.get();
+		}
+	}
+
+	/**
+	 * Records the time passed since the given start.
+	 * 
+	 * @param startNanos Value of {@link System#nanoTime()} when the operation started
+	 */
+	public void recordSince(final long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getMaxNanos() {
+		return this.max.get();
+	}
+
+	public long getMeanNanos() {
+		final long n = this.count.get();
+		return n == 0 ? 0 : this.sum.get() / n;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket the given percentile falls into.
+	 * 
+	 * @param percentile between 0 and 1
+	 */
+	public long getPercentileNanos(final double percentile) {
+		final long n = this.count.get();
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(percentile * n);
+		long seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(i == 0 ? 0 : 1L << i, this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+}
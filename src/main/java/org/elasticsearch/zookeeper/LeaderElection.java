@@ -0,0 +1,251 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Elects a single leader among all clients that joined the election, using ephemeral sequential nodes below the election
+ * path. The client with the lowest sequence number is the leader, every other client only watches its direct predecessor,
+ * so that the leaving of a client only wakes up the client after it.
+ */
+public class LeaderElection implements Watcher, ZKConnectionListener {
+	private static final Logger					logger		= LoggerFactory.getLogger(LeaderElection.class);
+	private static final String					prefix		= "n_";
+	private final ZKConnector					zooConnector;
+	private final String						electionPath;
+	private volatile byte[]						data;
+	private final WatchDispatcher				dispatcher;
+	private final Runnable						check		= new Check();
+	private final List<LeaderElectionListener>	listeners	= new CopyOnWriteArrayList<LeaderElectionListener>();
+	private volatile String						ownPath;
+	private volatile boolean					leader;
+	private volatile boolean					joined;
+
+	/**
+	 * @param zooConnector
+	 * @param electionPath Node below which the candidates are registered, it's created if it doesn't exist
+	 * @param data Data stored in the candidate node of this client, so that other clients can identify the leader
+	 * @param dispatcher If set, watch events are handled by the dispatcher instead of on the ZooKeeper event thread.
+	 */
+	public LeaderElection(final ZKConnector zooConnector, final String electionPath, final byte[] data, final WatchDispatcher dispatcher) {
+		this.zooConnector = zooConnector;
+		this.electionPath = electionPath;
+		this.data = data;
+		this.dispatcher = dispatcher;
+	}
+
+	public void addListener(final LeaderElectionListener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(final LeaderElectionListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Registers this client as a candidate with the given data, which replaces the data given to the constructor.
+	 * 
+	 * @param candidateData
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public synchronized void join(final byte[] candidateData) throws KeeperException, InterruptedException {
+		this.data = candidateData;
+		join();
+	}
+
+	/**
+	 * Registers this client as a candidate and checks whether it has become the leader.
+	 * 
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public synchronized void join() throws KeeperException, InterruptedException {
+		this.joined = true;
+		this.zooConnector.addListener(this);
+		final ZooKeeper zk = this.zooConnector.getZk();
+		try {
+			zk.create(this.electionPath, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException e) {
+			// created by another candidate
+		}
+		final long start = System.nanoTime();
+		this.ownPath = zk.create(this.electionPath + "/" + prefix, this.data, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+		this.zooConnector.getMetrics().operation(ZKMetrics.Operation.CREATE, start);
+		logger.debug("Zookeeper: joined election {} as {}", this.electionPath, this.ownPath);
+		check();
+	}
+
+	/**
+	 * Removes this client from the election, the next candidate becomes leader if this client was the leader.
+	 */
+	public synchronized void leave() {
+		this.joined = false;
+		this.zooConnector.removeListener(this);
+		final String path = this.ownPath;
+		this.ownPath = null;
+		setLeader(false);
+		if (path == null) {
+			return;
+		}
+		try {
+			final long start = System.nanoTime();
+			this.zooConnector.getZk().delete(path, -1);
+			this.zooConnector.getMetrics().operation(ZKMetrics.Operation.DELETE, start);
+		} catch (KeeperException.NoNodeException e) {
+			// already gone with the session
+		} catch (Exception e) {
+			logger.warn("Zookeeper: can't remove candidate node " + path + ", it will be removed with the session", e);
+		}
+	}
+
+	public boolean isLeader() {
+		return this.leader;
+	}
+
+	public boolean isJoined() {
+		return this.joined;
+	}
+
+	/**
+	 * Returns the path of the candidate node of this client, or null if it hasn't joined the election.
+	 */
+	public String getOwnPath() {
+		return this.ownPath;
+	}
+
+	/**
+	 * Reads the data the current leader has joined the election with.
+	 * 
+	 * @return the data of the leader, or null if there are no candidates
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public byte[] getLeaderData() throws KeeperException, InterruptedException {
+		final ZooKeeper zk = this.zooConnector.getZk();
+		while (true) {
+			final List<String> candidates = getCandidates(zk);
+			if (candidates.isEmpty()) {
+				return null;
+			}
+			try {
+				final long start = System.nanoTime();
+				final byte[] data = zk.getData(this.electionPath + "/" + candidates.get(0), false, null);
+				this.zooConnector.getMetrics().operation(ZKMetrics.Operation.GET_DATA, start);
+				return data;
+			} catch (KeeperException.NoNodeException e) {
+				// the leader has just left, look again
+			}
+		}
+	}
+
+	@Override
+	public void process(final WatchedEvent event) {
+		this.zooConnector.getMetrics().watchEvent(event);
+		if (event.getType() != Event.EventType.NodeDeleted) {
+			return;
+		}
+		if (this.dispatcher != null) {
+			this.dispatcher.dispatch(this, this.check);
+		}
+		else {
+			runCheck();
+		}
+	}
+
+	/**
+	 * Ephemeral candidate nodes are removed with an expired session, so the client joins again with the new session.
+	 */
+	@Override
+	public void connectionStateChanged(final ZKConnector connector, final ZKConnectionState state) {
+		if (state == ZKConnectionState.EXPIRED) {
+			this.ownPath = null;
+			setLeader(false);
+		}
+		else if (state == ZKConnectionState.RECOVERED && this.joined) {
+			try {
+				join();
+			} catch (Exception e) {
+				logger.error("Zookeeper: can't join election " + this.electionPath + " again", e);
+			}
+		}
+	}
+
+	/**
+	 * Becomes leader if this client's node is the first candidate, otherwise watches the candidate right before it.
+	 */
+	private synchronized void check() throws KeeperException, InterruptedException {
+		final ZooKeeper zk = this.zooConnector.getZk();
+		while (this.joined && this.ownPath != null) {
+			final List<String> candidates = getCandidates(zk);
+			final int index = candidates.indexOf(this.ownPath.substring(this.ownPath.lastIndexOf('/') + 1));
+			if (index < 0) {
+				logger.warn("Zookeeper: candidate node {} has vanished, joining election again", this.ownPath);
+				join();
+				return;
+			}
+			if (index == 0) {
+				setLeader(true);
+				return;
+			}
+			setLeader(false);
+			final long start = System.nanoTime();
+			final Stat predecessor = zk.exists(this.electionPath + "/" + candidates.get(index - 1), this);
+			this.zooConnector.getMetrics().operation(ZKMetrics.Operation.EXISTS, start);
+			if (predecessor != null) {
+				return;
+			}
+			// the predecessor left before the watch was set, look again
+		}
+	}
+
+	private List<String> getCandidates(final ZooKeeper zk) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		final List<String> candidates = zk.getChildren(this.electionPath, false);
+		this.zooConnector.getMetrics().operation(ZKMetrics.Operation.GET_CHILDREN, start);
+		// all candidates share the prefix, so the sequence numbers can be compared as strings
+		Collections.sort(candidates);
+		return candidates;
+	}
+
+	private void runCheck() {
+		try {
+			check();
+		} catch (Exception e) {
+			logger.warn("Zookeeper: exception while checking election " + this.electionPath, e);
+		}
+	}
+
+	private void setLeader(final boolean leader) {
+		if (this.leader == leader) {
+			return;
+		}
+		this.leader = leader;
+		logger.info("Zookeeper: {} leadership of {}", leader ? "gained" : "lost", this.electionPath);
+		for (final LeaderElectionListener listener : this.listeners) {
+			try {
+				listener.leadershipChanged(this, leader);
+			} catch (Exception e) {
+				logger.warn("Exception while notifying listener " + listener, e);
+			}
+		}
+	}
+
+	private class Check implements Runnable {
+		@Override
+		public void run() {
+			runCheck();
+		}
+	}
+}
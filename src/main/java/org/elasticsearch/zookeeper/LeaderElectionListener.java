@@ -0,0 +1,15 @@
+package org.elasticsearch.zookeeper;
+
+/**
+ * Gets notified when this client gains or loses the leadership of a {@link LeaderElection}.
+ */
+public interface LeaderElectionListener {
+	/**
+	 * Called whenever the leadership of this client changes. The calls are made from the thread that detected the change,
+	 * which can be the ZooKeeper event thread if the election has no dispatcher.
+	 * 
+	 * @param election
+	 * @param leader true if this client is the leader now
+	 */
+	void leadershipChanged(LeaderElection election, boolean leader);
+}
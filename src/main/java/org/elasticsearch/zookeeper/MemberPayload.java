@@ -0,0 +1,259 @@
+package org.elasticsearch.zookeeper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The data a cluster member registers in ZooKeeper: its transport addresses, node id, roles, zone and the time it has
+ * registered.
+ * <p>
+ * The binary format starts with a zero byte, which can't be the first byte of the plain UTF-8 "host:port" string that older
+ * versions register, followed by the format version. All strings are stored as an unsigned short length followed by UTF-8
+ * bytes:
+ * 
+ * <pre>
+ * 0x00 | version (1 byte) | timestamp (8 bytes) | roles (1 byte) | node id | zone | address count (1 byte) | addresses...
+ * </pre>
+ * 
+ * Decoding only records the offsets of the fields in the array returned by ZooKeeper, strings are decoded when they are
+ * accessed. Payloads in the old string format are decoded as a single address with unknown roles.
+ */
+public final class MemberPayload {
+	public static final int								ROLE_MASTER		= 1;
+	public static final int								ROLE_DATA		= 2;
+	public static final int								UNKNOWN_ROLES	= 0xFF;
+	public static final NodeDataCodec<MemberPayload>	CODEC			= new Codec();
+	private static final byte							MARKER			= 0;
+	private static final byte							VERSION			= 1;
+	private static final Charset						UTF8			= Charset.forName("UTF-8");
+	private final byte[]								data;
+	private final boolean								legacy;
+	private final long									timestamp;
+	private final int									roles;
+	private final int									nodeIdOffset;
+	private final int									zoneOffset;
+	private final int[]									addressOffsets;
+
+	private MemberPayload(final byte[] data) {
+		this.data = data;
+		if (data.length == 0 || data[0] != MARKER) {
+			this.legacy = true;
+			this.timestamp = 0;
+			this.roles = UNKNOWN_ROLES;
+			this.nodeIdOffset = -1;
+			this.zoneOffset = -1;
+			this.addressOffsets = new int[0];
+			return;
+		}
+		if (data.length < 11 || data[1] != VERSION) {
+			throw new IllegalArgumentException("Unsupported member payload version " + (data.length > 1 ? data[1] : -1));
+		}
+		this.legacy = false;
+		this.timestamp = readLong(data, 2);
+		this.roles = data[10] & 0xFF;
+		this.nodeIdOffset = 11;
+		this.zoneOffset = skipString(data, this.nodeIdOffset);
+		int offset = skipString(data, this.zoneOffset);
+		checkBounds(data, offset, 1);
+		this.addressOffsets = new int[data[offset++] & 0xFF];
+		for (int i = 0; i < this.addressOffsets.length; i++) {
+			this.addressOffsets[i] = offset;
+			offset = skipString(data, offset);
+		}
+	}
+
+	/**
+	 * Wraps the given data without copying it.
+	 * 
+	 * @param data Payload in the binary or the old string format, must not be modified afterwards
+	 * @throws IllegalArgumentException if the data is in an unknown format
+	 */
+	public static MemberPayload wrap(final byte[] data) {
+		return new MemberPayload(data);
+	}
+
+	/**
+	 * Creates a payload in the binary format.
+	 * 
+	 * @param addresses Transport addresses as "host:port", at most 255
+	 * @param nodeId
+	 * @param roles Combination of {@link MemberPayload#ROLE_MASTER} and {@link MemberPayload#ROLE_DATA}
+	 * @param zone
+	 * @param timestamp Time of the registration in milliseconds
+	 */
+	public static MemberPayload create(final List<String> addresses, final String nodeId, final int roles, final String zone,
+			final long timestamp) {
+		if (addresses.size() > 255) {
+			throw new IllegalArgumentException("Too many addresses: " + addresses.size());
+		}
+		final List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(bytes(nodeId));
+		strings.add(bytes(zone));
+		for (final String address : addresses) {
+			strings.add(bytes(address));
+		}
+		int length = 12;
+		for (final byte[] string : strings) {
+			length += 2 + string.length;
+		}
+
+		final byte[] data = new byte[length];
+		data[0] = MARKER;
+		data[1] = VERSION;
+		for (int i = 0; i < 8; i++) {
+			data[2 + i] = (byte) (timestamp >>> (56 - 8 * i));
+		}
+		data[10] = (byte) roles;
+		int offset = 11;
+		for (int i = 0; i < strings.size(); i++) {
+			if (i == 2) {
+				data[offset++] = (byte) addresses.size();
+			}
+			offset = writeString(data, offset, strings.get(i));
+		}
+		if (strings.size() == 2) {
+			data[offset++] = 0;
+		}
+		return new MemberPayload(data);
+	}
+
+	/**
+	 * Creates a payload in the old string format, for clusters that still run nodes which can only read that.
+	 */
+	public static MemberPayload legacy(final String address) {
+		return new MemberPayload(bytes(address));
+	}
+
+	/**
+	 * @return the encoded payload, must not be modified
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * @return true if the payload has been written in the old string format, which only contains an address
+	 */
+	public boolean isLegacy() {
+		return this.legacy;
+	}
+
+	public List<String> getAddresses() {
+		if (this.legacy) {
+			return Collections.singletonList(new String(this.data, UTF8));
+		}
+		final List<String> addresses = new ArrayList<String>(this.addressOffsets.length);
+		for (final int offset : this.addressOffsets) {
+			addresses.add(readString(this.data, offset));
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the node id or an empty string if it is unknown
+	 */
+	public String getNodeId() {
+		return this.legacy ? "" : readString(this.data, this.nodeIdOffset);
+	}
+
+	/**
+	 * @return the zone or an empty string if it is unknown
+	 */
+	public String getZone() {
+		return this.legacy ? "" : readString(this.data, this.zoneOffset);
+	}
+
+	/**
+	 * @return the roles or {@link MemberPayload#UNKNOWN_ROLES}
+	 */
+	public int getRoles() {
+		return this.roles;
+	}
+
+	public boolean hasRoles() {
+		return this.roles != UNKNOWN_ROLES;
+	}
+
+	/**
+	 * @return the registration time in milliseconds, or 0 if it is unknown
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof MemberPayload && Arrays.equals(this.data, ((MemberPayload) obj).data);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.data);
+	}
+
+	@Override
+	public String toString() {
+		if (this.legacy) {
+			return new String(this.data, UTF8);
+		}
+		return getAddresses() + " (id: " + getNodeId() + ", roles: " + this.roles + ", zone: " + getZone() + ")";
+	}
+
+	private static byte[] bytes(final String string) {
+		return (string == null ? "" : string).getBytes(UTF8);
+	}
+
+	private static int writeString(final byte[] data, final int offset, final byte[] string) {
+		if (string.length > 0xFFFF) {
+			throw new IllegalArgumentException("String too long: " + string.length);
+		}
+		data[offset] = (byte) (string.length >>> 8);
+		data[offset + 1] = (byte) string.length;
+		System.arraycopy(string, 0, data, offset + 2, string.length);
+		return offset + 2 + string.length;
+	}
+
+	private static String readString(final byte[] data, final int offset) {
+		return new String(data, offset + 2, readLength(data, offset), UTF8);
+	}
+
+	private static int skipString(final byte[] data, final int offset) {
+		checkBounds(data, offset, 2);
+		final int end = offset + 2 + readLength(data, offset);
+		checkBounds(data, end, 0);
+		return end;
+	}
+
+	private static int readLength(final byte[] data, final int offset) {
+		return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+	}
+
+	private static long readLong(final byte[] data, final int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = value << 8 | data[offset + i] & 0xFF;
+		}
+		return value;
+	}
+
+	private static void checkBounds(final byte[] data, final int offset, final int length) {
+		if (offset + length > data.length) {
+			throw new IllegalArgumentException("Truncated member payload");
+		}
+	}
+
+	private static class Codec implements NodeDataCodec<MemberPayload> {
+		@Override
+		public byte[] encode(final MemberPayload value) {
+			return value.data;
+		}
+
+		@Override
+		public MemberPayload decode(final byte[] data) {
+			return wrap(data);
+		}
+	}
+}
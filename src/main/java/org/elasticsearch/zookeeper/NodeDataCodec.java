@@ -0,0 +1,19 @@
+package org.elasticsearch.zookeeper;
+
+/**
+ * Converts between the values of a {@link NodeSet} and the data that is stored in the ZooKeeper nodes.
+ */
+public interface NodeDataCodec<T> {
+	/**
+	 * @param value
+	 * @return the data to store in the node
+	 */
+	byte[] encode(T value);
+
+	/**
+	 * @param data The data as returned by ZooKeeper. Implementations must not modify the array.
+	 * @return the decoded value
+	 * @throws IllegalArgumentException if the data can't be decoded
+	 */
+	T decode(byte[] data);
+}
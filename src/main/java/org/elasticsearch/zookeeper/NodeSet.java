@@ -1,62 +1,332 @@
 package org.elasticsearch.zookeeper;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
-import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Stores a set of data in a set of ZooKeeper nodes for later retrieval. Data is only kept as long as the client that set the
  * value is connected.
+ * <p>
+ * Members are either stored as direct children of the group, or hashed into a fixed number of bucket nodes below the group,
+ * each with its own children watch, so that a join or leave only causes one bucket to be listed again. Children whose name
+ * starts with an underscore are reserved for internal use and are never treated as members.
+ * <p>
+ * Optionally the set reads a summary of all members that is maintained by a {@link NodeSetAggregator} instead, which needs
+ * a single read no matter how many members there are. The member nodes are read directly whenever there is no summary, or
+ * no client is left in the election of the aggregator to keep the summary up to date.
  */
-public class NodeSet<T> implements Watcher, Iterable<Entry<String, String>> {
-	private static final Logger			logger	= LoggerFactory.getLogger(NodeSet.class);
-	private final ZooKeeper				zoo;
-	private final String				groupPath;
-	private final Map<String, String>	nodeMap	= new ConcurrentHashMap<String, String>();
-
-	public NodeSet(final ZKConnector zoo, final String groupPath) {
-		this.zoo = zoo.getZk();
-		this.groupPath = groupPath;
+public class NodeSet<T> implements Watcher, ZKConnectionListener, Iterable<Entry<String, T>> {
+	private static final Logger				logger			= LoggerFactory.getLogger(NodeSet.class);
+	private final ZKConnector				zoo;
+	private final ZKConnector				reader;
+	private final String					groupPath;
+	private final NodeDataCodec<T>			codec;
+	private final boolean					pipelined;
+	private final WatchDispatcher			dispatcher;
+	private final int						buckets;
+	private volatile NodeSetSnapshot<T>		snapshot		= new NodeSetSnapshot<T>(0, new HashMap<String, T>());
+	private final Set<String>				childrenChanged	= Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicBoolean				watchesLost		= new AtomicBoolean();
+	private final Set<String>				dataChanged		= Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Runnable					refresh			= new Refresh();
+	private final StatCallback				dropListing		= new DropListing();
+	private final List<NodeSetListener<T>>	listeners		= new CopyOnWriteArrayList<NodeSetListener<T>>();
+	private final Map<String, Long>			versions		= new HashMap<String, Long>();
+	private final Map<String, Set<String>>	children		= new HashMap<String, Set<String>>();
+	private final AtomicBoolean				summaryChanged	= new AtomicBoolean();
+	private volatile String					summaryPath;
+	private volatile String					electionPath;
+	private volatile boolean				summaryAvailable;
+	private volatile boolean				synced;
+	private volatile boolean				closed;
+
+	/**
+	 * Creates a set and immediately reads the current members from the connected ZooKeeper.
+	 * 
+	 * @param zoo
+	 * @param groupPath
+	 * @param codec Decodes the data of the member nodes
+	 */
+	public NodeSet(final ZKConnector zoo, final String groupPath, final NodeDataCodec<T> codec) {
+		this(zoo, groupPath, codec, false, null);
 		try {
-			getNodesFromZoo();
+			sync();
 		} catch (Exception e) {
 			logger.warn("Exception while processing watch", e);
 		}
 	}
 
 	/**
-	 * React on an event fired by the ZooKeeper Cluster and update our known information.
+	 * Creates an empty set that doesn't talk to ZooKeeper before {@link NodeSet#sync()} is called, so that it can be set up
+	 * before the connection has been established.
+	 * 
+	 * @param zoo
+	 * @param groupPath
+	 * @param codec Decodes the data of the member nodes
+	 * @param pipelined If true the data of new members is requested asynchronously with all requests sent at once, instead
+	 *            of one blocking request per member.
+	 * @param dispatcher If set, watch events are handled by the dispatcher instead of on the ZooKeeper event thread.
+	 */
+	public NodeSet(final ZKConnector zoo, final String groupPath, final NodeDataCodec<T> codec, final boolean pipelined,
+			final WatchDispatcher dispatcher) {
+		this(zoo, groupPath, codec, pipelined, dispatcher, 0);
+	}
+
+	/**
+	 * Creates an empty set like {@link NodeSet#NodeSet(ZKConnector, String, NodeDataCodec, boolean, WatchDispatcher)}, with
+	 * the members hashed into the given number of buckets. All members and readers of a group must use the same number of
+	 * buckets.
+	 * 
+	 * @param zoo
+	 * @param groupPath
+	 * @param codec Decodes the data of the member nodes
+	 * @param pipelined
+	 * @param dispatcher
+	 * @param buckets Number of bucket nodes, or 0 to store the members directly below the group
+	 */
+	public NodeSet(final ZKConnector zoo, final String groupPath, final NodeDataCodec<T> codec, final boolean pipelined,
+			final WatchDispatcher dispatcher, final int buckets) {
+		this(zoo, zoo, groupPath, codec, pipelined, dispatcher, buckets);
+	}
+
+	/**
+	 * Creates an empty set like {@link NodeSet#NodeSet(ZKConnector, String, NodeDataCodec, boolean, WatchDispatcher, int)},
+	 * that reads the members and sets its watches through a separate session, for example one connected to observers. Only
+	 * the bucket nodes are created through the other session, which also records the metrics.
+	 * 
+	 * @param zoo
+	 * @param reader Session all reads go through, may be the same as zoo
+	 * @param groupPath
+	 * @param codec Decodes the data of the member nodes
+	 * @param pipelined
+	 * @param dispatcher
+	 * @param buckets Number of bucket nodes, or 0 to store the members directly below the group
+	 */
+	public NodeSet(final ZKConnector zoo, final ZKConnector reader, final String groupPath, final NodeDataCodec<T> codec,
+			final boolean pipelined, final WatchDispatcher dispatcher, final int buckets) {
+		this.zoo = zoo;
+		this.reader = reader;
+		this.groupPath = groupPath;
+		this.codec = codec;
+		this.pipelined = pipelined;
+		this.dispatcher = dispatcher;
+		this.buckets = buckets;
+		// the watches are lost with the session they have been set in
+		reader.addListener(this);
+	}
+
+	/**
+	 * Reads all members from ZooKeeper, sets the watches and waits until the data has been applied. Missing bucket nodes are
+	 * created. Must not be called on the ZooKeeper event thread.
+	 * 
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void sync() throws KeeperException, InterruptedException {
+		createBuckets();
+		if (this.reader != this.zoo) {
+			// the server of the reading session may lag behind, reads sent after the sync wait until it has caught up
+			this.reader.getZk().sync(this.groupPath, new VoidCallback() {
+				@Override
+				public void processResult(final int rc, final String path, final Object ctx) {}
+			}, null);
+		}
+		this.synced = true;
+		if (this.summaryPath != null) {
+			this.summaryAvailable = readSummary();
+			if (this.summaryAvailable) {
+				return;
+			}
+		}
+		for (final CountDownLatch latch : getNodesFromZoo(getParents(), false)) {
+			latch.await();
+		}
+	}
+
+	/**
+	 * Switches between reading the members from a summary node and reading the member nodes directly. If the set has
+	 * already been synced, all members are read again in the new mode.
+	 * 
+	 * @param summaryPath The node holding the summary, or null to read the member nodes directly
+	 */
+	public void useSummary(final String summaryPath) {
+		useSummary(summaryPath, null);
+	}
+
+	/**
+	 * Switches to reading the members from a summary node like {@link NodeSet#useSummary(String)}, but only trusts the
+	 * summary while the election of the clients maintaining it has a candidate. The summary isn't removed when its last
+	 * maintainer is gone, so the member nodes are read directly until a candidate has joined again.
+	 * 
+	 * @param summaryPath The node holding the summary, or null to read the member nodes directly
+	 * @param electionPath The node below which the candidates maintaining the summary are registered
+	 */
+	public void useSummary(final String summaryPath, final String electionPath) {
+		this.summaryPath = summaryPath;
+		this.electionPath = electionPath;
+		this.summaryAvailable = false;
+		if (!this.synced) {
+			return;
+		}
+		this.watchesLost.set(true);
+		if (this.dispatcher != null) {
+			this.dispatcher.dispatch(this, this.refresh);
+		}
+		else {
+			refresh();
+		}
+	}
+
+	/**
+	 * Returns the path of the node a member with the given name is stored below, which is the group itself or the bucket the
+	 * name hashes to.
+	 * 
+	 * @param name
+	 */
+	public String getParentOf(final String name) {
+		if (this.buckets <= 0) {
+			return this.groupPath;
+		}
+		return this.groupPath + "/_bucket-" + (name.hashCode() & Integer.MAX_VALUE) % this.buckets;
+	}
+
+	/**
+	 * React on an event fired by the ZooKeeper Cluster and update our known information. Events are only recorded here, the
+	 * actual refresh is run by the dispatcher so that multiple events can be handled at once.
 	 */
 	@Override
 	public void process(final WatchedEvent event) {
-		if (event.getType() == EventType.NodeChildrenChanged) {
+		if (this.closed) {
+			// watches can't be removed, they keep firing while somebody else holds the session
+			return;
+		}
+		this.zoo.getMetrics().watchEvent(event);
+		final String path = event.getPath();
+		if (path != null && (path.equals(this.summaryPath) || path.equals(this.electionPath))) {
+			this.summaryChanged.set(true);
+		}
+		else if (event.getType() == EventType.NodeChildrenChanged || getParents().contains(path)) {
+			this.childrenChanged.add(path);
+		}
+		else if ((event.getType() == EventType.NodeDataChanged || event.getType() == EventType.NodeDeleted)
+				&& !path.substring(path.lastIndexOf('/') + 1).startsWith("_")) {
+			// a deleted node might have been recreated before we've seen the children change, so its data is read again
+			this.dataChanged.add(path);
+		}
+		else {
+			return;
+		}
+
+		if (this.dispatcher != null) {
+			this.dispatcher.dispatch(this, this.refresh);
+		}
+		else {
+			refresh();
+		}
+	}
+
+	/**
+	 * After a session expiry all watches are gone, so every member is read again with a new watch once the new session has
+	 * been established.
+	 */
+	@Override
+	public void connectionStateChanged(final ZKConnector connector, final ZKConnectionState state) {
+		if (state == ZKConnectionState.SUSPENDED || state == ZKConnectionState.EXPIRED) {
+			this.zoo.getMetrics().viewStale();
+			return;
+		}
+		if (state == ZKConnectionState.RECONNECTED) {
+			// the client sets all watches again within the same session
+			if (this.synced) {
+				this.zoo.getMetrics().viewUpdated();
+			}
+			return;
+		}
+		if (state != ZKConnectionState.RECOVERED) {
+			return;
+		}
+		this.watchesLost.set(true);
+		if (this.dispatcher != null) {
+			this.dispatcher.dispatch(this, this.refresh);
+		}
+		else {
+			refresh();
+		}
+	}
+
+	/**
+	 * Handles all events that have been recorded since the last refresh.
+	 */
+	private void refresh() {
+		if (this.closed) {
+			return;
+		}
+		boolean rewatch = this.watchesLost.getAndSet(false);
+		this.zoo.getMetrics().refresh();
+		final List<String> parents = new ArrayList<String>();
+		for (final Iterator<String> it = this.childrenChanged.iterator(); it.hasNext();) {
+			parents.add(it.next());
+			it.remove();
+		}
+
+		if (this.summaryPath != null) {
+			if (this.summaryChanged.getAndSet(false) || rewatch) {
+				final boolean wasAvailable = this.summaryAvailable;
+				try {
+					this.summaryAvailable = readSummary();
+				} catch (Exception e) {
+					logger.warn("Exception while reading summary " + this.summaryPath, e);
+					this.summaryAvailable = false;
+				}
+				// the watches on the member nodes may have fired unnoticed while the summary was used
+				rewatch |= wasAvailable && !this.summaryAvailable;
+			}
+			if (this.summaryAvailable) {
+				this.dataChanged.clear();
+				return;
+			}
+		}
+		if (rewatch || !parents.isEmpty()) {
+			if (rewatch) {
+				this.zoo.getMetrics().resync();
+			}
 			try {
-				getNodesFromZoo();
+				getNodesFromZoo(rewatch ? getParents() : parents, rewatch);
 			} catch (Exception e) {
 				logger.warn("Exception while processing watch", e);
 			}
-
 		}
-		else if (event.getType() == EventType.NodeDataChanged) {
-			final String path = event.getPath();
-			final String[] compStrings = path.split("/");
-			final String node = compStrings[compStrings.length - 1];
 
+		for (final Iterator<String> it = this.dataChanged.iterator(); it.hasNext();) {
+			final String path = it.next();
+			it.remove();
 			try {
-				remove(node);
-				add(node);
+				update(path);
 			} catch (Exception e) {
 				logger.warn("Exception while processing watch", e);
 			}
@@ -64,43 +334,411 @@ public class NodeSet<T> implements Watcher, Iterable<Entry<String, String>> {
 	}
 
 	@Override
-	public Iterator<Entry<String, String>> iterator() {
-		return this.nodeMap.entrySet().iterator();
+	public Iterator<Entry<String, T>> iterator() {
+		return this.snapshot.iterator();
+	}
+
+	/**
+	 * Returns the current membership. The returned snapshot never changes, a new one is published for every change.
+	 */
+	public NodeSetSnapshot<T> snapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Registers a listener that is notified about all future changes. Current members are reported right away as added
+	 * nodes, so that the listener doesn't need to read the current snapshot itself.
+	 * 
+	 * @param listener
+	 */
+	public synchronized void addListener(final NodeSetListener<T> listener) {
+		this.listeners.add(listener);
+		if (this.snapshot.size() > 0) {
+			listener.nodeSetChanged(this.snapshot, diff(new HashMap<String, T>(), this.snapshot.getNodes()));
+		}
+	}
+
+	public void removeListener(final NodeSetListener<T> listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Stops following the members, so that a connector shared with others doesn't keep this set alive. Watch events that
+	 * still arrive are ignored and listeners aren't notified anymore.
+	 */
+	public void close() {
+		this.closed = true;
+		this.reader.removeListener(this);
+		this.listeners.clear();
 	}
 
 	/**
-	 * Fetches data form ZooKeeper and checks what information needs to be updated.
+	 * Fetches data form ZooKeeper and checks what information needs to be updated. In pipelined mode the returned latches
+	 * are released once all responses have been applied. The latches must not be awaited on the ZooKeeper event thread, as
+	 * that is the thread delivering the responses.
 	 * 
+	 * @param parents The nodes to list the members of, all requests are sent before the first response is applied
+	 * @param all If true the data of all members is read again, not only of new ones, which sets all watches again
+	 * @return latches that are released when the fetched data has been applied
 	 * @throws KeeperException
 	 * @throws InterruptedException
-	 * @throws UnsupportedEncodingException
 	 */
-	private synchronized void getNodesFromZoo() throws KeeperException, InterruptedException, UnsupportedEncodingException {
+	private synchronized List<CountDownLatch> getNodesFromZoo(final List<String> parents, final boolean all)
+			throws KeeperException, InterruptedException {
+		final List<CountDownLatch> latches = new ArrayList<CountDownLatch>(parents.size());
+		for (final String parent : parents) {
+			latches.add(getNodesFromZoo(parent, all));
+		}
+		if (all) {
+			// members only known from the summary or from buckets that are no longer used are removed once everything has
+			// been listed, as responses are delivered in order the callback runs after all members above have been applied
+			final Set<String> stale = new HashSet<String>(this.children.keySet());
+			stale.removeAll(parents);
+			for (final String parent : stale) {
+				this.reader.getZk().exists(parent, false, this.dropListing, null);
+			}
+		}
+		return latches;
+	}
+
+	/**
+	 * Reads the summary of all members and sets a watch on it.
+	 * 
+	 * @return false if there is no summary, or nobody maintains it
+	 */
+	private boolean readSummary() throws KeeperException, InterruptedException {
+		final String path = this.summaryPath;
+		if (this.electionPath != null && !hasMaintainer(this.electionPath)) {
+			logger.info("Nobody maintains summary {}, reading the members directly", path);
+			return false;
+		}
+		final Stat stat = new Stat();
+		final byte[] data;
+		final long start = System.nanoTime();
 		try {
-			final Set<String> newState = new HashSet<String>(this.zoo.getChildren(this.groupPath, this));
-			final Set<String> toDelete = new HashSet<String>(this.nodeMap.keySet());
-			toDelete.removeAll(newState);
+			data = this.reader.getZk().getData(path, this, stat);
+			this.zoo.getMetrics().operation(ZKMetrics.Operation.GET_DATA, start);
+			this.zoo.getMetrics().summaryRead();
+		} catch (KeeperException.NoNodeException e) {
+			// tells us when the summary has been created
+			final long existsStart = System.nanoTime();
+			final Stat created = this.reader.getZk().exists(path, this);
+			this.zoo.getMetrics().operation(ZKMetrics.Operation.EXISTS, existsStart);
+			this.zoo.getMetrics().viewUpdated();
+			if (created != null) {
+				this.summaryChanged.set(true);
+			}
+			return false;
+		}
+		if (data == null || data.length == 0) {
+			return false;
+		}
+		final Map<String, T> nodes = new HashMap<String, T>();
+		final Map<String, Long> nodeVersions = new HashMap<String, Long>();
+		try {
+			NodeSetSummary.decode(data, this.codec, nodes, nodeVersions);
+		} catch (IllegalArgumentException e) {
+			logger.warn("Can't decode summary " + path, e);
+			return false;
+		}
+		publish(path, nodes.keySet(), nodes, nodeVersions, true);
+		logger.debug("Read {} members from summary {} (mzxid {})", new Object[] { nodes.size(), path, stat.getMzxid() });
+		return true;
+	}
+
+	/**
+	 * Checks whether the election has any candidate and watches it, so that the summary is read again once that changes.
+	 */
+	private boolean hasMaintainer(final String electionPath) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		try {
+			final boolean candidates = !this.reader.getZk().getChildren(electionPath, this).isEmpty();
+			this.zoo.getMetrics().operation(ZKMetrics.Operation.GET_CHILDREN, start);
+			return candidates;
+		} catch (KeeperException.NoNodeException e) {
+			// tells us when the first candidate has joined
+			final long existsStart = System.nanoTime();
+			final Stat created = this.reader.getZk().exists(electionPath, this);
+			this.zoo.getMetrics().operation(ZKMetrics.Operation.EXISTS, existsStart);
+			if (created != null) {
+				this.summaryChanged.set(true);
+			}
+			return false;
+		}
+	}
 
+	/**
+	 * Encodes the current members for {@link NodeSetAggregator}.
+	 */
+	synchronized byte[] encodeSummary() {
+		return NodeSetSummary.encode(this.snapshot.getNodes(), this.versions, this.codec);
+	}
+
+	private CountDownLatch getNodesFromZoo(final String parent, final boolean all) throws KeeperException, InterruptedException {
+		try {
+			final Set<String> newState = new HashSet<String>();
+			final long start = System.nanoTime();
+			final List<String> listed = this.reader.getZk().getChildren(parent, this);
+			this.zoo.getMetrics().operation(ZKMetrics.Operation.GET_CHILDREN, start);
+			for (final String child : listed) {
+				if (!child.startsWith("_")) {
+					newState.add(child);
+				}
+			}
 			final Set<String> toAdd = new HashSet<String>(newState);
-			newState.removeAll(this.nodeMap.keySet());
+			if (!all) {
+				toAdd.removeAll(this.snapshot.getNodes().keySet());
+			}
 
-			for (final String node : toDelete) {
-				remove(node);
+			if (this.pipelined) {
+				final PipelinedFetch fetch = new PipelinedFetch(parent, newState, toAdd.size());
+				for (final String node : toAdd) {
+					this.reader.getZk().getData(parent + "/" + node, this, fetch, node);
+				}
+				if (toAdd.isEmpty()) {
+					fetch.apply();
+				}
+				return fetch.done;
 			}
+
+			final Map<String, T> results = new HashMap<String, T>();
+			final Map<String, Long> resultVersions = new HashMap<String, Long>();
 			for (final String node : toAdd) {
-				add(node);
+				try {
+					final Stat stat = new Stat();
+					results.put(node, fetch(parent + "/" + node, stat));
+					resultVersions.put(node, stat.getMzxid());
+				} catch (KeeperException.NoNodeException e) {
+					// the node is gone again, the next children watch will tell us
+				} catch (IllegalArgumentException e) {
+					logger.warn("Can't decode data of node " + node, e);
+				}
 			}
+			publish(parent, newState, results, resultVersions, false);
+			return new CountDownLatch(0);
 		} catch (KeeperException.NoNodeException e) {
-			throw new RuntimeException("Group does not exist: " + this.groupPath, e);
+			if (parent.equals(this.groupPath)) {
+				throw new RuntimeException("Group does not exist: " + parent, e);
+			}
+		}
+		// a missing bucket is read as empty, so that the other buckets are still read, the watch tells us once it is back
+		logger.warn("Bucket {} does not exist, treating it as empty", parent);
+		final Stat bucket = this.reader.getZk().exists(parent, this);
+		publish(parent, new HashSet<String>(), Collections.<String, T> emptyMap(), Collections.<String, Long> emptyMap(), false);
+		if (bucket != null && this.dispatcher != null) {
+			// created again before the watch has been set
+			this.childrenChanged.add(parent);
+			this.dispatcher.dispatch(this, this.refresh);
+		}
+		return new CountDownLatch(0);
+	}
+
+	private List<String> getParents() {
+		if (this.buckets <= 0) {
+			return Collections.singletonList(this.groupPath);
+		}
+		final List<String> parents = new ArrayList<String>(this.buckets);
+		for (int i = 0; i < this.buckets; i++) {
+			parents.add(this.groupPath + "/_bucket-" + i);
+		}
+		return parents;
+	}
+
+	private void createBuckets() throws KeeperException, InterruptedException {
+		if (this.buckets <= 0) {
+			return;
+		}
+		for (final String bucket : getParents()) {
+			try {
+				final long start = System.nanoTime();
+				this.zoo.getZk().create(bucket, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+				this.zoo.getMetrics().operation(ZKMetrics.Operation.CREATE, start);
+			} catch (KeeperException.NodeExistsException e) {
+				// created by another node
+			} catch (KeeperException.NoNodeException e) {
+				throw new RuntimeException("Group does not exist: " + this.groupPath, e);
+			}
 		}
 	}
 
-	private void add(final String node) throws KeeperException, InterruptedException, UnsupportedEncodingException {
-		final byte[] data = this.zoo.getData(this.groupPath + "/" + node, this, null);
-		this.nodeMap.put(node, new String(data, "UTF-8"));
+	private T fetch(final String path, final Stat stat) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		final byte[] data = this.reader.getZk().getData(path, this, stat);
+		this.zoo.getMetrics().operation(ZKMetrics.Operation.GET_DATA, start);
+		this.zoo.getMetrics().viewUpdated();
+		return this.codec.decode(data);
 	}
 
-	private void remove(final String node) {
-		this.nodeMap.remove(node);
+	/**
+	 * Re-reads the data of a known member and replaces its value in place, so that the member never disappears from the set
+	 * while it's being updated.
+	 */
+	private void update(final String path) throws KeeperException, InterruptedException {
+		final Stat stat = new Stat();
+		final T value;
+		try {
+			value = fetch(path, stat);
+		} catch (KeeperException.NoNodeException e) {
+			// the node has been removed, the children watch will take care of that
+			return;
+		}
+		final String node = path.substring(path.lastIndexOf('/') + 1);
+		publish(null, null, Collections.singletonMap(node, value), Collections.singletonMap(node, stat.getMzxid()), false);
+	}
+
+	/**
+	 * Swaps in a new snapshot that contains only the given members, with their values replaced by the given updates. Updates
+	 * are only applied to members and only if they have been read from a newer version of the znode (by mzxid) than the
+	 * current value, so that a late response can't overwrite newer data. The generation is only increased if the
+	 * membership has actually changed, in which case the listeners are notified.
+	 * 
+	 * @param parent the node the members have been listed from, or null to keep the current members
+	 * @param members all nodes below parent that are part of the new snapshot
+	 * @param updates new values for nodes that are part of members
+	 * @param updateVersions the mzxid each of the updates has been read at
+	 * @param replaceAll if true the members replace everything that has been listed from any parent before
+	 */
+	private synchronized void publish(final String parent, final Set<String> members, final Map<String, T> updates,
+			final Map<String, Long> updateVersions, final boolean replaceAll) {
+		final Map<String, T> nodes = new HashMap<String, T>(this.snapshot.getNodes());
+		if (parent != null) {
+			this.zoo.getMetrics().viewUpdated();
+			final Set<String> previous = new HashSet<String>();
+			if (replaceAll) {
+				for (final Set<String> listed : this.children.values()) {
+					previous.addAll(listed);
+				}
+				this.children.clear();
+			}
+			else if (this.children.containsKey(parent)) {
+				previous.addAll(this.children.get(parent));
+			}
+			this.children.put(parent, members);
+			previous.removeAll(members);
+			for (final Set<String> listed : this.children.values()) {
+				previous.removeAll(listed);
+			}
+			nodes.keySet().removeAll(previous);
+			this.versions.keySet().removeAll(previous);
+		}
+		for (final Entry<String, T> update : updates.entrySet()) {
+			final String node = update.getKey();
+			if (members == null ? !nodes.containsKey(node) : !members.contains(node)) {
+				continue;
+			}
+			final Long known = this.versions.get(node);
+			final long version = updateVersions.get(node);
+			if (known != null && version < known) {
+				logger.debug("Dropping stale data for node {} (mzxid {} < {})", new Object[] { node, version, known });
+				continue;
+			}
+			nodes.put(node, update.getValue());
+			this.versions.put(node, version);
+		}
+
+		final List<NodeSetDelta<T>> deltas = diff(this.snapshot.getNodes(), nodes);
+		if (deltas.isEmpty()) {
+			return;
+		}
+		this.snapshot = new NodeSetSnapshot<T>(this.snapshot.getGeneration() + 1, nodes);
+		for (final NodeSetListener<T> listener : this.listeners) {
+			try {
+				listener.nodeSetChanged(this.snapshot, deltas);
+			} catch (Exception e) {
+				logger.warn("Exception while notifying listener " + listener, e);
+			}
+		}
+	}
+
+	private static <T> List<NodeSetDelta<T>> diff(final Map<String, T> before, final Map<String, T> after) {
+		final List<NodeSetDelta<T>> deltas = new ArrayList<NodeSetDelta<T>>();
+		for (final Entry<String, T> entry : before.entrySet()) {
+			final T value = after.get(entry.getKey());
+			if (value == null) {
+				deltas.add(new NodeSetDelta<T>(NodeSetDelta.Type.REMOVED, entry.getKey(), entry.getValue(), null));
+			}
+			else if (!value.equals(entry.getValue())) {
+				deltas.add(new NodeSetDelta<T>(NodeSetDelta.Type.UPDATED, entry.getKey(), entry.getValue(), value));
+			}
+		}
+		for (final Entry<String, T> entry : after.entrySet()) {
+			if (!before.containsKey(entry.getKey())) {
+				deltas.add(new NodeSetDelta<T>(NodeSetDelta.Type.ADDED, entry.getKey(), null, entry.getValue()));
+			}
+		}
+		return deltas;
+	}
+
+	/**
+	 * Removes the members that have only been listed from the parent the callback is called for.
+	 */
+	private class DropListing implements StatCallback {
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final Stat stat) {
+			synchronized (NodeSet.this) {
+				// the summary may have been read again in the meantime
+				final boolean summary = path.equals(NodeSet.this.summaryPath) && NodeSet.this.summaryAvailable;
+				if (!summary && NodeSet.this.children.containsKey(path)) {
+					publish(path, Collections.<String> emptySet(), Collections.<String, T> emptyMap(),
+							Collections.<String, Long> emptyMap(), false);
+					NodeSet.this.children.remove(path);
+				}
+			}
+		}
+	}
+
+	private class Refresh implements Runnable {
+		@Override
+		public void run() {
+			refresh();
+		}
+	}
+
+	/**
+	 * Collects the responses of a batch of asynchronous getData requests and publishes them as a new snapshot once
+	 * the last response has arrived. Responses are delivered in order on the ZooKeeper event thread.
+	 */
+	private class PipelinedFetch implements DataCallback {
+		private final String			parent;
+		private final Set<String>		children;
+		private final Map<String, T>	results			= new HashMap<String, T>();
+		private final Map<String, Long>	resultVersions	= new HashMap<String, Long>();
+		private final CountDownLatch	done			= new CountDownLatch(1);
+		private final long				start			= System.nanoTime();
+		private int						pending;
+
+		PipelinedFetch(final String parent, final Set<String> children, final int pending) {
+			this.parent = parent;
+			this.children = children;
+			this.pending = pending;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final byte[] data, final Stat stat) {
+			final String node = (String) ctx;
+			final Code code = Code.get(rc);
+			// the requests of a batch are sent at once, so each response is timed from the start of the batch
+			NodeSet.this.zoo.getMetrics().operation(ZKMetrics.Operation.GET_DATA, this.start);
+			if (code == Code.OK) {
+				try {
+					this.results.put(node, NodeSet.this.codec.decode(data));
+					this.resultVersions.put(node, stat.getMzxid());
+				} catch (IllegalArgumentException e) {
+					logger.warn("Can't decode data of node " + path, e);
+				}
+			}
+			else if (code != Code.NONODE) {
+				// A vanished node will be reported by the next children watch, everything else is worth a warning.
+				logger.warn("Exception while fetching node data", KeeperException.create(code, path));
+			}
+			if (--this.pending == 0) {
+				apply();
+			}
+		}
+
+		void apply() {
+			publish(this.parent, this.children, this.results, this.resultVersions, false);
+			this.done.countDown();
+		}
 	}
 }
@@ -0,0 +1,151 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains a summary node with all members of a {@link NodeSet}, so that the other clients only need to read and watch a
+ * single node. All clients join an election below the group, only the leader reads the member nodes directly and writes
+ * the summary, all other clients read the summary. The ephemeral member nodes stay the source of truth, the other
+ * clients read them directly whenever the summary is missing or the election has no candidate left that could keep it up
+ * to date.
+ */
+public class NodeSetAggregator<T> implements NodeSetListener<T>, LeaderElectionListener {
+	private static final Logger		logger			= LoggerFactory.getLogger(NodeSetAggregator.class);
+	// stay below the default jute.maxbuffer of ZooKeeper
+	private static final int		maxSummarySize	= 1000 * 1024;
+	private final ZKConnector		zooConnector;
+	private final NodeSet<T>		nodes;
+	private final String			summaryPath;
+	private final String			electionPath;
+	private final LeaderElection	election;
+	private final WatchDispatcher	dispatcher;
+	private final Runnable			write			= new Write();
+
+	/**
+	 * Sets the node set up to read the summary, {@link NodeSetAggregator#start()} has to be called once the set has been
+	 * synced.
+	 * 
+	 * @param zooConnector
+	 * @param nodes
+	 * @param groupPath The group of the node set, the election and the summary are kept below it
+	 * @param dispatcher Runs the writes of the summary
+	 */
+	public NodeSetAggregator(final ZKConnector zooConnector, final NodeSet<T> nodes, final String groupPath,
+			final WatchDispatcher dispatcher) {
+		this.zooConnector = zooConnector;
+		this.nodes = nodes;
+		this.summaryPath = groupPath + "/_members";
+		this.electionPath = groupPath + "/_election";
+		this.dispatcher = dispatcher;
+		this.election = new LeaderElection(zooConnector, this.electionPath, new byte[0], dispatcher);
+		this.election.addListener(this);
+		nodes.useSummary(this.summaryPath, this.electionPath);
+	}
+
+	/**
+	 * Joins the election of the aggregator.
+	 * 
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void start() throws KeeperException, InterruptedException {
+		this.election.join();
+	}
+
+	/**
+	 * Leaves the election, so that another client takes over.
+	 */
+	public void stop() {
+		this.election.leave();
+	}
+
+	public boolean isLeader() {
+		return this.election.isLeader();
+	}
+
+	@Override
+	public void leadershipChanged(final LeaderElection leaderElection, final boolean leader) {
+		if (leader) {
+			logger.info("Zookeeper: maintaining the summary {}", this.summaryPath);
+			this.nodes.useSummary(null);
+			this.nodes.addListener(this);
+			this.dispatcher.dispatch(this, this.write);
+		}
+		else {
+			this.nodes.removeListener(this);
+			this.nodes.useSummary(this.summaryPath, this.electionPath);
+		}
+	}
+
+	@Override
+	public void nodeSetChanged(final NodeSetSnapshot<T> snapshot, final List<NodeSetDelta<T>> deltas) {
+		// this might be the ZooKeeper event thread, so the blocking write has to be done elsewhere
+		this.dispatcher.dispatch(this, this.write);
+	}
+
+	/**
+	 * Writes the current members to the summary, but only as long as this client's candidate node exists, so that a client
+	 * that has lost its leadership can't overwrite the summary of the new leader.
+	 */
+	private void writeSummary() throws KeeperException, InterruptedException {
+		final String candidate = this.election.getOwnPath();
+		if (!this.election.isLeader() || candidate == null) {
+			return;
+		}
+		final ZooKeeper zk = this.zooConnector.getZk();
+		final byte[] data = this.nodes.encodeSummary();
+		if (data.length > maxSummarySize) {
+			logger.warn("Zookeeper: summary of {} bytes is too large, removing {} so that all clients read the members directly",
+					data.length, this.summaryPath);
+			try {
+				final long start = System.nanoTime();
+				zk.multi(Arrays.asList(Op.check(candidate, -1), Op.delete(this.summaryPath, -1)));
+				this.zooConnector.getMetrics().operation(ZKMetrics.Operation.MULTI, start);
+			} catch (KeeperException.NoNodeException e) {
+				// already gone
+			}
+			return;
+		}
+
+		final ZKMetrics metrics = this.zooConnector.getMetrics();
+		long start = System.nanoTime();
+		try {
+			zk.multi(Arrays.asList(Op.check(candidate, -1), Op.setData(this.summaryPath, data, -1)));
+			metrics.operation(ZKMetrics.Operation.MULTI, start);
+		} catch (KeeperException.NoNodeException e) {
+			start = System.nanoTime();
+			final Stat stat = zk.exists(candidate, false);
+			metrics.operation(ZKMetrics.Operation.EXISTS, start);
+			if (stat == null) {
+				logger.info("Zookeeper: lost leadership of {} while writing the summary", this.summaryPath);
+				return;
+			}
+			start = System.nanoTime();
+			zk.multi(Arrays.asList(Op.check(candidate, -1),
+					Op.create(this.summaryPath, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)));
+			metrics.operation(ZKMetrics.Operation.MULTI, start);
+		}
+		logger.debug("Zookeeper: wrote summary {} with {} bytes", this.summaryPath, data.length);
+	}
+
+	private class Write implements Runnable {
+		@Override
+		public void run() {
+			try {
+				writeSummary();
+			} catch (Exception e) {
+				logger.warn("Zookeeper: can't write summary " + NodeSetAggregator.this.summaryPath, e);
+			}
+		}
+	}
+}
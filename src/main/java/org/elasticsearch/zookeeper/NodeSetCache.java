@@ -0,0 +1,148 @@
+package org.elasticsearch.zookeeper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last known members of a {@link NodeSet} in a local file, so that they can be used before ZooKeeper can be
+ * reached after a restart. The file is written after every change of the membership, to a temporary file that is then
+ * renamed, so that a crash never leaves a partially written file behind. Writes are done by a thread of their own, so that
+ * a slow disk doesn't hold up the handling of watches, and changes arriving during a write are merged into the next one.
+ */
+public class NodeSetCache<T> implements NodeSetListener<T> {
+	private static final Logger			logger	= LoggerFactory.getLogger(NodeSetCache.class);
+	private final File					file;
+	private final File					tempFile;
+	private final NodeDataCodec<T>		codec;
+	private final ExecutorService		executor;
+	private final AtomicBoolean			pending	= new AtomicBoolean();
+	private final Runnable				write	= new Write();
+	private volatile NodeSetSnapshot<T>	snapshot;
+
+	/**
+	 * @param file
+	 * @param codec Encodes the values of the members
+	 */
+	public NodeSetCache(final File file, final NodeDataCodec<T> codec) {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+		this.codec = codec;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "zk-membership-cache");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Reads the members from the file.
+	 * 
+	 * @return the members as they have been written last, or an empty map if there is no readable file
+	 */
+	public Map<String, T> load() {
+		if (!this.file.isFile()) {
+			return Collections.emptyMap();
+		}
+		final Map<String, T> nodes = new HashMap<String, T>();
+		try {
+			NodeSetSummary.decode(read(this.file), this.codec, nodes, new HashMap<String, Long>());
+			logger.info("Read {} members from {}", nodes.size(), this.file);
+			return nodes;
+		} catch (Exception e) {
+			logger.warn("Can't read membership cache " + this.file + ", ignoring it", e);
+			return Collections.emptyMap();
+		}
+	}
+
+	@Override
+	public void nodeSetChanged(final NodeSetSnapshot<T> nodeSetSnapshot, final List<NodeSetDelta<T>> deltas) {
+		this.snapshot = nodeSetSnapshot;
+		if (!this.pending.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(this.write);
+		} catch (RejectedExecutionException e) {
+			// closed
+			this.pending.set(false);
+		}
+	}
+
+	/**
+	 * Stops writing the file, a write that has already been scheduled is still finished.
+	 */
+	public void close() {
+		this.executor.shutdown();
+	}
+
+	private void writeSnapshot() throws IOException {
+		final NodeSetSnapshot<T> current = this.snapshot;
+		final byte[] data = NodeSetSummary.encode(current.getNodes(), Collections.<String, Long> emptyMap(), this.codec);
+		final File parent = this.file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Can't create directory " + parent);
+		}
+
+		final FileOutputStream out = new FileOutputStream(this.tempFile);
+		try {
+			out.write(data);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		// renaming onto an existing file fails on some platforms
+		if (!this.tempFile.renameTo(this.file) && !(this.file.delete() && this.tempFile.renameTo(this.file))) {
+			throw new IOException("Can't rename " + this.tempFile + " to " + this.file);
+		}
+		logger.debug("Wrote {} members of generation {} to {}", new Object[] { current.size(), current.getGeneration(), this.file });
+	}
+
+	private static byte[] read(final File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				final int read = in.read(data, offset, data.length - offset);
+				if (read < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private class Write implements Runnable {
+		@Override
+		public void run() {
+			// changes arriving from now on need another write
+			NodeSetCache.this.pending.set(false);
+			try {
+				writeSnapshot();
+			} catch (IOException e) {
+				logger.warn("Can't write membership cache " + NodeSetCache.this.file, e);
+			}
+		}
+	}
+}
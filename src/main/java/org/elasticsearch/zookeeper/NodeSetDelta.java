@@ -0,0 +1,49 @@
+package org.elasticsearch.zookeeper;
+
+/**
+ * Describes how a single member of a {@link NodeSet} has changed between two snapshots.
+ */
+public final class NodeSetDelta<T> {
+	public enum Type {
+		ADDED, REMOVED, UPDATED
+	}
+
+	private final Type		type;
+	private final String	node;
+	private final T			oldValue;
+	private final T			newValue;
+
+	NodeSetDelta(final Type type, final String node, final T oldValue, final T newValue) {
+		this.type = type;
+		this.node = node;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+
+	public Type getType() {
+		return this.type;
+	}
+
+	public String getNode() {
+		return this.node;
+	}
+
+	/**
+	 * @return the value before the change, or null if the node has been added
+	 */
+	public T getOldValue() {
+		return this.oldValue;
+	}
+
+	/**
+	 * @return the value after the change, or null if the node has been removed
+	 */
+	public T getNewValue() {
+		return this.newValue;
+	}
+
+	@Override
+	public String toString() {
+		return this.type + " " + this.node + " [" + this.oldValue + " -> " + this.newValue + "]";
+	}
+}
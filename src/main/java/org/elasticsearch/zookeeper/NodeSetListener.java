@@ -0,0 +1,17 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.List;
+
+/**
+ * Gets notified about every change of the membership of a {@link NodeSet}.
+ */
+public interface NodeSetListener<T> {
+	/**
+	 * Called with all changes that lead to the given snapshot. Listeners are called in the order the snapshots have been
+	 * published while the {@link NodeSet} is locked, so implementations should return quickly.
+	 * 
+	 * @param snapshot The membership after the changes have been applied
+	 * @param deltas The changes since the previous snapshot
+	 */
+	void nodeSetChanged(NodeSetSnapshot<T> snapshot, List<NodeSetDelta<T>> deltas);
+}
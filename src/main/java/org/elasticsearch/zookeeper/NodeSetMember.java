@@ -1,7 +1,10 @@
 package org.elasticsearch.zookeeper;
 
+import java.util.Arrays;
+
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
@@ -10,23 +13,62 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class NodeSetMember implements Watcher {
-	private static final Logger	logger	= LoggerFactory.getLogger(NodeSetMember.class);
-	private String				group;
-	private String				nodeName;
-	private final String		nodeValue;
-	private final ZKConnector	zooConnector;
+/**
+ * Registers a value as an ephemeral node in a group, so that it can be found by a {@link NodeSet}. The node is registered
+ * again whenever the session has been replaced after an expiry.
+ */
+public class NodeSetMember implements Watcher, ZKConnectionListener {
+	private static final Logger		logger				= LoggerFactory.getLogger(NodeSetMember.class);
+	private static final int		maxRegisterAttempts	= 3;
+	private String					group;
+	private String					nodeName;
+	private volatile String			nodeValue;
+	private volatile byte[]			nodeData;
+	private final ZKConnector		zooConnector;
+	private final WatchDispatcher	dispatcher;
+	private final Runnable			rewatch				= new Rewatch();
+	private final Runnable			register			= new Register();
+	private volatile boolean		waitingForRelease;
+	private volatile boolean		registered;
 
 	public NodeSetMember(final ZKConnector zooConnector, final String group, final String nodeName, final String value) {
+		this(zooConnector, group, nodeName, value, null);
+	}
+
+	/**
+	 * @param zooConnector
+	 * @param group
+	 * @param nodeName
+	 * @param value
+	 * @param dispatcher If set, watch events are handled by the dispatcher instead of on the ZooKeeper event thread.
+	 */
+	public NodeSetMember(final ZKConnector zooConnector, final String group, final String nodeName, final String value,
+			final WatchDispatcher dispatcher) {
+		this(zooConnector, group, nodeName, value, StringCodec.INSTANCE, dispatcher);
+	}
+
+	/**
+	 * @param zooConnector
+	 * @param group
+	 * @param nodeName
+	 * @param value
+	 * @param codec Encodes the value into the data stored in the node
+	 * @param dispatcher If set, watch events are handled by the dispatcher instead of on the ZooKeeper event thread.
+	 */
+	public <T> NodeSetMember(final ZKConnector zooConnector, final String group, final String nodeName, final T value,
+			final NodeDataCodec<T> codec, final WatchDispatcher dispatcher) {
 		this.zooConnector = zooConnector;
 		this.group = group;
 		this.nodeName = nodeName;
-		this.nodeValue = value;
+		this.nodeValue = String.valueOf(value);
+		this.nodeData = codec.encode(value);
+		this.dispatcher = dispatcher;
 	}
 
 	/**
 	 * Checks if everything has been set up correctly and then creates a node in the given group (=path) with the given
-	 * value.
+	 * value. A stale node with the same name is replaced in a single transaction, unless it is held by another live session.
+	 * In that case registration is retried as soon as that node has been removed.
 	 */
 	public void registerNode() {
 		if (!this.group.endsWith("/")) {
@@ -35,36 +77,108 @@ public class NodeSetMember implements Watcher {
 		if (this.nodeName.startsWith("/")) {
 			this.nodeName = this.nodeName.substring(1);
 		}
+		this.waitingForRelease = false;
+		this.registered = true;
+		this.zooConnector.addListener(this);
 
 		try {
 			final ZooKeeper zk = this.zooConnector.getZk();
-			logger.info("Zookeeper: {} - creating node entry: {}{} = {} ", new Object[] { getConnectionAsString(), this.group,
-					this.nodeName, this.nodeValue });
-
-			final Stat exists = zk.exists(this.group + this.nodeName, false);
-			if (exists != null) {
-				zk.delete(this.group + this.nodeName, -1);
-				logger.info("Zookeeper: {} - existing node entry has been removed: {}{}", new Object[] { getConnectionAsString(),
-						this.group, this.nodeName });
-			}
+			final String path = this.group + this.nodeName;
+			final byte[] data = this.nodeData;
+			final ZKMetrics metrics = this.zooConnector.getMetrics();
+			final long start = System.nanoTime();
+			logger.info("Zookeeper: {} - creating node entry: {} = {} ", new Object[] { getConnectionAsString(), path, this.nodeValue });
 
-			zk.create(this.group + this.nodeName, this.nodeValue.getBytes("UTF-8"), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-			logger.info("Zookeeper: {} - node entry has been written: {}{} = {} ", new Object[] { getConnectionAsString(), this.group,
-					this.nodeName, this.nodeValue });
+			for (int attempt = 1; attempt <= maxRegisterAttempts; attempt++) {
+				long opStart = System.nanoTime();
+				try {
+					zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+					metrics.operation(ZKMetrics.Operation.CREATE, opStart);
+					metrics.getRegistration().recordSince(start);
+					logger.info("Zookeeper: {} - node entry has been written: {} = {} ", new Object[] { getConnectionAsString(), path,
+							this.nodeValue });
+					watchZKNode();
+					return;
+				} catch (KeeperException.NodeExistsException e) {
+					logger.debug("Zookeeper: node entry {} already exists, checking owner", path);
+				}
 
-			watchZKNode();
+				opStart = System.nanoTime();
+				final Stat existing = zk.exists(path, false);
+				metrics.operation(ZKMetrics.Operation.EXISTS, opStart);
+				if (existing == null) {
+					continue;
+				}
+				final long owner = existing.getEphemeralOwner();
+				if (owner != 0 && owner != zk.getSessionId()) {
+					logger.error("Zookeeper: {} - node entry {} is held by live session 0x{}, another process seems to be using the "
+							+ "same node name. Will register once that entry is gone.", new Object[] { getConnectionAsString(), path,
+							Long.toHexString(owner) });
+					this.waitingForRelease = true;
+					if (zk.exists(path, this) == null) {
+						registerNode();
+					}
+					return;
+				}
+
+				// the delete only succeeds if the node is still the version we've looked at, and the whole transaction fails with
+				// it, so a node that has been replaced in between is never removed
+				try {
+					opStart = System.nanoTime();
+					zk.multi(Arrays.asList(Op.delete(path, existing.getVersion()), Op.create(path, data, Ids.OPEN_ACL_UNSAFE,
+							CreateMode.EPHEMERAL)));
+					metrics.operation(ZKMetrics.Operation.MULTI, opStart);
+					metrics.getRegistration().recordSince(start);
+					logger.info("Zookeeper: {} - stale node entry has been replaced: {} = {} ", new Object[] { getConnectionAsString(),
+							path, this.nodeValue });
+					watchZKNode();
+					return;
+				} catch (KeeperException e) {
+					logger.debug("Zookeeper: node entry {} changed while replacing it ({}), retrying", path, e.code());
+				}
+			}
+			logger.error("Zookeeper: giving up to create node entry {} after {} attempts", path, maxRegisterAttempts);
 		} catch (Exception e) {
 			logger.error("Zookeeper: Exception while creating ephemeral node", e);
 		}
 	}
 
+	/**
+	 * Replaces the value of the node. The node isn't removed while doing so, so the members of the group only see the data
+	 * change.
+	 * 
+	 * @param value
+	 * @param codec Encodes the value into the data stored in the node
+	 */
+	public <T> void updateValue(final T value, final NodeDataCodec<T> codec) {
+		this.nodeValue = String.valueOf(value);
+		this.nodeData = codec.encode(value);
+		if (!this.registered || this.waitingForRelease) {
+			return;
+		}
+		try {
+			final long start = System.nanoTime();
+			this.zooConnector.getZk().setData(this.group + this.nodeName, this.nodeData, -1);
+			this.zooConnector.getMetrics().operation(ZKMetrics.Operation.SET_DATA, start);
+			logger.info("Zookeeper: node entry has been updated: {}{} = {} ", new Object[] { this.group, this.nodeName, this.nodeValue });
+		} catch (KeeperException.NoNodeException e) {
+			// not created yet, the new value will be used once it is
+		} catch (Exception e) {
+			logger.error("Zookeeper: Exception while updating node " + this.group + this.nodeName, e);
+		}
+	}
+
 	/**
 	 * Removes the node from Zookeeper.
 	 */
 	public void unregisterNode() {
+		this.registered = false;
+		this.zooConnector.removeListener(this);
 		try {
 			final ZooKeeper zk = this.zooConnector.getZk();
+			final long start = System.nanoTime();
 			zk.delete(this.group + this.nodeName, -1);
+			this.zooConnector.getMetrics().operation(ZKMetrics.Operation.DELETE, start);
 		} catch (InterruptedException ex) {
 			logger.warn("Interruption while removing Zookeeper node entry in preDestroy {}{}. (Nevertheless zookeeper should removed this node after some secondes.)",
 				new Object[] { this.group, this.nodeName },
@@ -78,8 +192,31 @@ public class NodeSetMember implements Watcher {
 
 	@Override
 	public void process(final WatchedEvent we) {
-		if (we.getType() == Event.EventType.NodeCreated || we.getType() == Event.EventType.NodeDataChanged) {
-			watchZKNode();
+		this.zooConnector.getMetrics().watchEvent(we);
+		if (we.getType() == Event.EventType.NodeDeleted && this.waitingForRelease) {
+			if (this.dispatcher != null) {
+				// each task is its own key, so that a pending rewatch can't swallow a registration
+				this.dispatcher.dispatch(this.register, this.register);
+			}
+			else {
+				registerNode();
+			}
+		}
+		else if (we.getType() == Event.EventType.NodeCreated || we.getType() == Event.EventType.NodeDataChanged) {
+			if (this.dispatcher != null) {
+				this.dispatcher.dispatch(this.rewatch, this.rewatch);
+			}
+			else {
+				watchZKNode();
+			}
+		}
+	}
+
+	@Override
+	public void connectionStateChanged(final ZKConnector connector, final ZKConnectionState state) {
+		if (state == ZKConnectionState.RECOVERED && this.registered) {
+			logger.info("Zookeeper: session has been replaced, registering node entry {}{} again", this.group, this.nodeName);
+			registerNode();
 		}
 	}
 
@@ -105,4 +242,18 @@ public class NodeSetMember implements Watcher {
 		final ZooKeeper zk = this.zooConnector.getZk();
 		return zk.getState() == ZooKeeper.States.CONNECTED && zk.getState().isAlive();
 	}
+
+	private class Rewatch implements Runnable {
+		@Override
+		public void run() {
+			watchZKNode();
+		}
+	}
+
+	private class Register implements Runnable {
+		@Override
+		public void run() {
+			registerNode();
+		}
+	}
 }
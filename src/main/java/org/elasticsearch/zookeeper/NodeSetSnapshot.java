@@ -0,0 +1,37 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An immutable view of the members of a {@link NodeSet}. Every change of the membership publishes a new snapshot with a
+ * higher generation, so readers can tell whether anything has changed since they last looked.
+ */
+public final class NodeSetSnapshot<T> implements Iterable<Entry<String, T>> {
+	private final long				generation;
+	private final Map<String, T>	nodes;
+
+	NodeSetSnapshot(final long generation, final Map<String, T> nodes) {
+		this.generation = generation;
+		this.nodes = Collections.unmodifiableMap(nodes);
+	}
+
+	public long getGeneration() {
+		return this.generation;
+	}
+
+	public Map<String, T> getNodes() {
+		return this.nodes;
+	}
+
+	public int size() {
+		return this.nodes.size();
+	}
+
+	@Override
+	public Iterator<Entry<String, T>> iterator() {
+		return this.nodes.entrySet().iterator();
+	}
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.zookeeper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes all members of a {@link NodeSet} into a single byte array, so that the whole membership can be stored in and read
+ * from one node. Every member is stored with its name, the mzxid its data has been read at and its data as written by the
+ * member.
+ */
+final class NodeSetSummary {
+	private static final Logger	logger	= LoggerFactory.getLogger(NodeSetSummary.class);
+	private static final byte	version	= 1;
+
+	private NodeSetSummary() {}
+
+	static <T> byte[] encode(final Map<String, T> nodes, final Map<String, Long> versions, final NodeDataCodec<T> codec) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * nodes.size() + 5);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(version);
+			out.writeInt(nodes.size());
+			for (final Entry<String, T> node : nodes.entrySet()) {
+				final Long mzxid = versions.get(node.getKey());
+				final byte[] data = codec.encode(node.getValue());
+				out.writeUTF(node.getKey());
+				out.writeLong(mzxid != null ? mzxid : 0);
+				out.writeInt(data.length);
+				out.write(data);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// can't happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a summary into the given maps. Members whose data can't be decoded are skipped.
+	 * 
+	 * @param data
+	 * @param codec
+	 * @param nodes Receives the value of every member
+	 * @param versions Receives the mzxid of every member
+	 * @throws IllegalArgumentException if the summary itself is malformed
+	 */
+	static <T> void decode(final byte[] data, final NodeDataCodec<T> codec, final Map<String, T> nodes, final Map<String, Long> versions) {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			if (in.readByte() != version) {
+				throw new IllegalArgumentException("Unsupported summary version " + data[0]);
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				final String name = in.readUTF();
+				final long mzxid = in.readLong();
+				final byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				try {
+					nodes.put(name, codec.decode(value));
+					versions.put(name, mzxid);
+				} catch (IllegalArgumentException e) {
+					logger.warn("Can't decode data of node " + name + " in summary", e);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Truncated summary", e);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.elasticsearch.zookeeper;
+
+import java.nio.charset.Charset;
+
+/**
+ * Stores values as UTF-8 strings.
+ */
+public final class StringCodec implements NodeDataCodec<String> {
+	public static final StringCodec	INSTANCE	= new StringCodec();
+	private static final Charset	UTF8		= Charset.forName("UTF-8");
+
+	private StringCodec() {}
+
+	@Override
+	public byte[] encode(final String value) {
+		return value.getBytes(UTF8);
+	}
+
+	@Override
+	public String decode(final byte[] data) {
+		return new String(data, UTF8);
+	}
+}
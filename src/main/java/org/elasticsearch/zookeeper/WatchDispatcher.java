@@ -0,0 +1,85 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work triggered by ZooKeeper watches on a dedicated thread instead of the ZooKeeper event thread. All tasks
+ * submitted for the same key within one debounce window are merged into a single run, so a burst of watch events only
+ * causes one refresh.
+ */
+public class WatchDispatcher {
+	private static final Logger				logger	= LoggerFactory.getLogger(WatchDispatcher.class);
+	private final ScheduledExecutorService	executor;
+	private final long						debounce;
+	private final long						jitter;
+	private final Random					random	= new Random();
+	private final Set<Object>				pending	= Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+	/**
+	 * @param debounce Time in milliseconds to wait after the first event for a key before the task is run.
+	 * @param jitter Maximum random time in milliseconds that is added to the debounce window, so that nodes which received
+	 *            the same event don't all hit the ZooKeeper ensemble at the same moment.
+	 */
+	public WatchDispatcher(final long debounce, final long jitter) {
+		this.debounce = debounce;
+		this.jitter = jitter;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "zk-watch-dispatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Schedules the task for the next debounce window, unless a task for the same key is already waiting to be run. Tasks
+	 * dispatched after {@link WatchDispatcher#close()} are dropped.
+	 * 
+	 * @param key Identifies tasks that can be merged
+	 * @param task
+	 */
+	public void dispatch(final Object key, final Runnable task) {
+		if (this.executor.isShutdown() || !this.pending.add(key)) {
+			return;
+		}
+		final long delay = this.debounce + (this.jitter > 0 ? (long) (this.random.nextDouble() * this.jitter) : 0);
+		try {
+			this.executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// events arriving while the task runs have to schedule another run
+					WatchDispatcher.this.pending.remove(key);
+					try {
+						task.run();
+					} catch (Exception e) {
+						logger.warn("Exception while processing watch", e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed in the meantime, we might be on the ZooKeeper event thread so the task is dropped quietly
+			this.pending.remove(key);
+		}
+	}
+
+	/**
+	 * Stops the dispatcher thread, tasks that have not been run yet are dropped.
+	 */
+	public void close() {
+		this.executor.shutdownNow();
+		this.pending.clear();
+	}
+}
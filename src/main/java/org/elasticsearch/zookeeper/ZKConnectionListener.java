@@ -0,0 +1,16 @@
+package org.elasticsearch.zookeeper;
+
+/**
+ * Gets notified when the session of a {@link ZKConnector} changes its state.
+ */
+public interface ZKConnectionListener {
+	/**
+	 * Called for every state transition of the session. {@link ZKConnectionState#RECOVERED} is reported from the recovery
+	 * thread, so listeners may use the new session right away. All other transitions are reported from the ZooKeeper event
+	 * thread and should be handled quickly.
+	 * 
+	 * @param connector The connector whose session has changed
+	 * @param state The new state
+	 */
+	void connectionStateChanged(ZKConnector connector, ZKConnectionState state);
+}
@@ -0,0 +1,29 @@
+package org.elasticsearch.zookeeper;
+
+/**
+ * The state transitions of a ZooKeeper session that are reported to a {@link ZKConnectionListener}.
+ */
+public enum ZKConnectionState {
+	/**
+	 * The first session has been established.
+	 */
+	CONNECTED,
+	/**
+	 * The connection to the server has been lost, but the session might still be alive. Ephemeral nodes and watches are kept
+	 * by the server until the session expires.
+	 */
+	SUSPENDED,
+	/**
+	 * The connection has been restored within the session timeout, nothing has been lost.
+	 */
+	RECONNECTED,
+	/**
+	 * The session has expired. All ephemeral nodes and watches of the session are gone and a new session is being created.
+	 */
+	EXPIRED,
+	/**
+	 * A new session has been established after the previous one expired. Ephemeral nodes have to be created and watches have
+	 * to be set again.
+	 */
+	RECOVERED
+}
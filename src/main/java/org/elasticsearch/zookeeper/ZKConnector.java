@@ -1,27 +1,70 @@
 package org.elasticsearch.zookeeper;
 
 import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * A wrapper class for the {@link ZooKeeper} that tries to build up a connection for a certain time, before timing out.
+ * A wrapper class for the {@link ZooKeeper} that tries to build up a connection for a certain time, before timing out. If
+ * the session expires, a new session is created in the background with an exponential backoff and all registered
+ * {@link ZKConnectionListener}s are told to restore their state.
  */
 public class ZKConnector implements Watcher {
-
-	private static final int		sessionTimeout	= 30000;
-	private ZooKeeper				zk;
-	private final CountDownLatch	connectedSignal	= new CountDownLatch(1);
-	private String					hosts;
+	private static final Logger									logger					= LoggerFactory.getLogger(ZKConnector.class);
+	private static final int									defaultSessionTimeout	= 30000;
+	private static final long									minRecoveryBackoff		= 500;
+	private static final long									maxRecoveryBackoff		= 30000;
+	private volatile ZooKeeper									zk;
+	private volatile CountDownLatch								connectedSignal			= new CountDownLatch(1);
+	private String												hosts;
+	private final CopyOnWriteArrayList<ZKConnectionListener>	listeners				= new CopyOnWriteArrayList<ZKConnectionListener>();
+	private volatile boolean									connected;
+	private volatile boolean									recovering;
+	private volatile boolean									closed;
+	private ExecutorService										recoveryExecutor;
+	private final ZKMetrics										metrics					= new ZKMetrics();
+	private final int											sessionTimeout;
+	private final boolean										canBeReadOnly;
 
 	/**
 	 * Creates an instance without connecting, or doing anything else.
 	 */
-	public ZKConnector() {}
+	public ZKConnector() {
+		this(defaultSessionTimeout);
+	}
+
+	/**
+	 * Creates an instance without connecting, that requests the given session timeout for all of its sessions.
+	 * 
+	 * @param sessionTimeout Time in milliseconds, the server limits it to between 2 and 20 times its tick time
+	 */
+	public ZKConnector(final int sessionTimeout) {
+		this(sessionTimeout, false);
+	}
+
+	/**
+	 * Creates an instance without connecting, whose sessions may stay connected to a server that has lost the quorum. Such a
+	 * session can only read, see {@link ZooKeeper#ZooKeeper(String, int, Watcher, boolean)}.
+	 * 
+	 * @param sessionTimeout Time in milliseconds
+	 * @param canBeReadOnly
+	 */
+	public ZKConnector(final int sessionTimeout, final boolean canBeReadOnly) {
+		this.sessionTimeout = sessionTimeout;
+		this.canBeReadOnly = canBeReadOnly;
+	}
 
 	/**
 	 * Creates an instance and immediately connects to the given hosts.
@@ -29,6 +72,8 @@ public class ZKConnector implements Watcher {
 	 * @param hosts Comma seperated connectString for ZooKeeper. See {@link ZooKeeper#ZooKeeper(String, int, Watcher)}
 	 */
 	public ZKConnector(final String hosts) {
+		this.sessionTimeout = defaultSessionTimeout;
+		this.canBeReadOnly = false;
 		try {
 			connect(hosts);
 		} catch (Exception e) {
@@ -46,15 +91,105 @@ public class ZKConnector implements Watcher {
 	 */
 	public synchronized void connect(final String hosts) throws IOException, InterruptedException {
 		this.hosts = hosts;
-		this.zk = new ZooKeeper(hosts, sessionTimeout, this);
+		this.closed = false;
+		this.connectedSignal = new CountDownLatch(1);
+		this.zk = new ZooKeeper(hosts, this.sessionTimeout, this, this.canBeReadOnly);
 		this.connectedSignal.await();
 	}
 
+	/**
+	 * Connects to the ZooKeeper server via the given connect String and waits for {@link KeeperState}.SyncConnected for at
+	 * most the given time. If no connection could be made in time, the client keeps trying in the background and
+	 * {@link ZKConnectionState#CONNECTED} is reported to the listeners once it succeeds.
+	 * 
+	 * @param hosts
+	 * @param timeout Time to wait in milliseconds
+	 * @return true if the connection has been established in time
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean connect(final String hosts, final long timeout) throws IOException, InterruptedException {
+		final CountDownLatch signal;
+		synchronized (this) {
+			this.hosts = hosts;
+			this.closed = false;
+			signal = this.connectedSignal = new CountDownLatch(1);
+			this.zk = new ZooKeeper(hosts, this.sessionTimeout, this, this.canBeReadOnly);
+		}
+		return signal.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Waits for at most the given time until a session is connected, without connecting by itself. Used by callers that
+	 * share a connector which is connected by somebody else.
+	 * 
+	 * @param timeout Time to wait in milliseconds
+	 * @return true if a session is connected
+	 * @throws InterruptedException
+	 */
+	public boolean awaitConnected(final long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (!isConnected()) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			// the latch is replaced for every new session, so it is only waited on for short rounds
+			this.connectedSignal.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+		}
+		return true;
+	}
+
+	public boolean isConnected() {
+		return this.zk != null && this.zk.getState().isConnected();
+	}
+
 	@Override
 	public void process(final WatchedEvent event) {
-		if (event.getState() == KeeperState.SyncConnected) {
-			this.connectedSignal.countDown();
+		if (event.getType() != EventType.None) {
+			return;
 		}
+		switch (event.getState()) {
+			case ConnectedReadOnly:
+				logger.info("Zookeeper: connected to a server without quorum, the session can only read");
+				// fall through, a read-only session is connected as far as readers are concerned
+			case SyncConnected:
+				this.connectedSignal.countDown();
+				if (this.recovering) {
+					// reported by the recovery thread once it is done
+					break;
+				}
+				notifyListeners(this.connected ? ZKConnectionState.RECONNECTED : ZKConnectionState.CONNECTED);
+				this.connected = true;
+				break;
+			case Disconnected:
+				if (!this.recovering) {
+					notifyListeners(ZKConnectionState.SUSPENDED);
+				}
+				break;
+			case Expired:
+				if (!this.recovering && !this.closed) {
+					logger.warn("Zookeeper: session 0x{} has expired, creating a new session", Long.toHexString(this.zk.getSessionId()));
+					notifyListeners(ZKConnectionState.EXPIRED);
+					startRecovery();
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Registers a listener for state changes of the session. Adding the same listener twice has no effect.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(final ZKConnectionListener listener) {
+		this.listeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(final ZKConnectionListener listener) {
+		this.listeners.remove(listener);
 	}
 
 	/**
@@ -64,7 +199,13 @@ public class ZKConnector implements Watcher {
 	 * @throws InterruptedException
 	 */
 	public synchronized void close() throws InterruptedException {
-		this.zk.close();
+		this.closed = true;
+		if (this.recoveryExecutor != null) {
+			this.recoveryExecutor.shutdownNow();
+		}
+		if (this.zk != null) {
+			this.zk.close();
+		}
 	}
 
 	public ZooKeeper getZk() {
@@ -72,19 +213,102 @@ public class ZKConnector implements Watcher {
 	}
 
 	/**
-	 * Tries to {@link ZKConnector#close()} and {@link ZKConnector#connect()} to a ZooKeeper server.
+	 * Returns the metrics all users of this connector record into.
+	 */
+	public ZKMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Tries to {@link ZKConnector#close()} and {@link ZKConnector#connect()} to a ZooKeeper server. As this creates a new
+	 * session, listeners are notified just like after a session expiry.
 	 * 
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	public synchronized void reconnect() throws IOException, InterruptedException {
+		this.recovering = true;
 		try {
-			this.zk.close();
+			try {
+				this.zk.close();
+			} catch (Exception e) {
+				logger.debug("Zookeeper: exception while closing the old session", e);
+			}
+			connect(this.hosts);
+		} finally {
+			this.recovering = false;
+		}
+		notifyListeners(ZKConnectionState.RECOVERED);
+	}
 
-		} catch (Exception e) {
-			// TODO: handle exception
+	private synchronized void startRecovery() {
+		this.recovering = true;
+		if (this.recoveryExecutor == null) {
+			this.recoveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "zk-session-recovery");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
-		connect(this.hosts);
+		this.recoveryExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				recover();
+			}
+		});
+	}
 
+	/**
+	 * Replaces the expired session with a new one, retrying with an exponential backoff until a connection has been made.
+	 */
+	private void recover() {
+		long backoff = minRecoveryBackoff;
+		while (!this.closed) {
+			try {
+				synchronized (this) {
+					try {
+						this.zk.close();
+					} catch (Exception e) {
+						logger.debug("Zookeeper: exception while closing the expired session", e);
+					}
+					this.connectedSignal = new CountDownLatch(1);
+					this.zk = new ZooKeeper(this.hosts, this.sessionTimeout, this, this.canBeReadOnly);
+				}
+				if (this.connectedSignal.await(this.sessionTimeout, TimeUnit.MILLISECONDS)) {
+					logger.info("Zookeeper: new session 0x{} has been established", Long.toHexString(this.zk.getSessionId()));
+					this.recovering = false;
+					notifyListeners(ZKConnectionState.RECOVERED);
+					return;
+				}
+				logger.warn("Zookeeper: could not establish a new session, retrying in {}ms", backoff);
+			} catch (IOException e) {
+				logger.warn("Zookeeper: exception while creating a new session, retrying in " + backoff + "ms", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			backoff = Math.min(backoff * 2, maxRecoveryBackoff);
+		}
+	}
+
+	private void notifyListeners(final ZKConnectionState state) {
+		logger.info("Zookeeper: connection state changed to {}", state);
+		this.metrics.connectionState(state);
+		for (final ZKConnectionListener listener : this.listeners) {
+			try {
+				listener.connectionStateChanged(this, state);
+			} catch (Exception e) {
+				logger.warn("Exception while notifying listener " + listener, e);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
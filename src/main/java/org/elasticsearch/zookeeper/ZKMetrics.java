@@ -0,0 +1,168 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+/**
+ * Collects latencies and counters of the ZooKeeper layer. One instance belongs to each {@link ZKConnector}, so that all
+ * classes using the connector record into the same metrics.
+ */
+public class ZKMetrics {
+	/**
+	 * The ZooKeeper operations whose latency is recorded.
+	 */
+	public enum Operation {
+		GET_CHILDREN, GET_DATA, EXISTS, CREATE, SET_DATA, DELETE, MULTI
+	}
+
+	private final LatencyHistogram[]	operations			= new LatencyHistogram[Operation.values().length];
+	private final AtomicLongArray		watchEvents			= new AtomicLongArray(EventType.values().length);
+	private final AtomicLongArray		connectionStates	= new AtomicLongArray(ZKConnectionState.values().length);
+	private final AtomicLong			refreshes			= new AtomicLong();
+	private final AtomicLong			resyncs				= new AtomicLong();
+	private final AtomicLong			summaryReads		= new AtomicLong();
+	private final LatencyHistogram		registration		= new LatencyHistogram();
+	private final LatencyHistogram		discovery			= new LatencyHistogram();
+	private volatile long				viewConfirmed;
+	private volatile long				viewStaleSince;
+
+	public ZKMetrics() {
+		for (int i = 0; i < this.operations.length; i++) {
+			this.operations[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the latency of a ZooKeeper operation.
+	 * 
+	 * @param operation
+	 * @param startNanos Value of {@link System#nanoTime()} when the request was sent
+	 */
+	public void operation(final Operation operation, final long startNanos) {
+		this.operations[operation.ordinal()].recordSince(startNanos);
+	}
+
+	public LatencyHistogram getLatency(final Operation operation) {
+		return this.operations[operation.ordinal()];
+	}
+
+	/**
+	 * Counts a watch that has fired. Changes of the connection state are sent to every watcher of the session without a path,
+	 * they are counted once by {@link ZKMetrics#connectionState(ZKConnectionState)} instead.
+	 * 
+	 * @param event
+	 */
+	public void watchEvent(final WatchedEvent event) {
+		if (event.getType() == EventType.None && event.getPath() == null) {
+			return;
+		}
+		this.watchEvents.incrementAndGet(event.getType().ordinal());
+	}
+
+	public void connectionState(final ZKConnectionState state) {
+		this.connectionStates.incrementAndGet(state.ordinal());
+	}
+
+	/**
+	 * Counts a refresh triggered by watch events.
+	 */
+	public void refresh() {
+		this.refreshes.incrementAndGet();
+	}
+
+	/**
+	 * Counts a full read of all members, after a session expiry or a change of the read mode.
+	 */
+	public void resync() {
+		this.resyncs.incrementAndGet();
+	}
+
+	public void summaryRead() {
+		this.summaryReads.incrementAndGet();
+	}
+
+	/**
+	 * Marks the current view of the membership as up to date, after a successful read that set its watches again.
+	 */
+	public void viewUpdated() {
+		this.viewConfirmed = System.currentTimeMillis();
+		this.viewStaleSince = 0;
+	}
+
+	/**
+	 * Marks the view as no longer followed by watches, because the connection has been lost. Its age counts from the last
+	 * time it has been confirmed.
+	 */
+	public void viewStale() {
+		if (this.viewStaleSince == 0) {
+			this.viewStaleSince = Math.max(1, this.viewConfirmed);
+		}
+	}
+
+	/**
+	 * Returns 0 while the view of the membership is kept up to date by watches, otherwise the time since it has last been
+	 * confirmed by ZooKeeper, or -1 if it never has.
+	 */
+	public long getViewAgeMillis() {
+		if (this.viewConfirmed == 0) {
+			return -1;
+		}
+		final long staleSince = this.viewStaleSince;
+		return staleSince == 0 ? 0 : System.currentTimeMillis() - staleSince;
+	}
+
+	/**
+	 * Time it took to register the node, including the replacement of stale entries.
+	 */
+	public LatencyHistogram getRegistration() {
+		return this.registration;
+	}
+
+	/**
+	 * Time it took to build the list of nodes for a ping round.
+	 */
+	public LatencyHistogram getDiscovery() {
+		return this.discovery;
+	}
+
+	/**
+	 * Returns all metrics by name, durations are given in milliseconds.
+	 */
+	public Map<String, Object> toMap() {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		for (final Operation operation : Operation.values()) {
+			addHistogram(map, "op." + operation.name().toLowerCase(Locale.ENGLISH), getLatency(operation));
+		}
+		addHistogram(map, "registration", this.registration);
+		addHistogram(map, "discovery.build_nodes", this.discovery);
+		for (final EventType type : EventType.values()) {
+			map.put("watch_events." + type.name(), this.watchEvents.get(type.ordinal()));
+		}
+		for (final ZKConnectionState state : ZKConnectionState.values()) {
+			map.put("connection_states." + state.name().toLowerCase(Locale.ENGLISH), this.connectionStates.get(state.ordinal()));
+		}
+		map.put("refreshes", this.refreshes.get());
+		map.put("resyncs", this.resyncs.get());
+		map.put("summary_reads", this.summaryReads.get());
+		map.put("view_age_ms", getViewAgeMillis());
+		return map;
+	}
+
+	private static void addHistogram(final Map<String, Object> map, final String name, final LatencyHistogram histogram) {
+		map.put(name + ".count", histogram.getCount());
+		map.put(name + ".mean_ms", millis(histogram.getMeanNanos()));
+		map.put(name + ".p50_ms", millis(histogram.getPercentileNanos(0.5)));
+		map.put(name + ".p99_ms", millis(histogram.getPercentileNanos(0.99)));
+		map.put(name + ".max_ms", millis(histogram.getMaxNanos()));
+	}
+
+	private static double millis(final long nanos) {
+		return nanos / 1000000.0;
+	}
+}
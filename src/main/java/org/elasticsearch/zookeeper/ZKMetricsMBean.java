@@ -0,0 +1,106 @@
+package org.elasticsearch.zookeeper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes {@link ZKMetrics} as read only attributes through JMX, named like the keys of {@link ZKMetrics#toMap()}.
+ */
+public class ZKMetricsMBean implements DynamicMBean {
+	private static final Logger	logger	= LoggerFactory.getLogger(ZKMetricsMBean.class);
+	private final ZKMetrics		metrics;
+	private final ObjectName	name;
+
+	/**
+	 * @param metrics
+	 * @param key Property of the bean name that distinguishes the sessions in the same JVM, like session or node
+	 * @param value Value of that property
+	 * @throws JMException if the name is invalid
+	 */
+	public ZKMetricsMBean(final ZKMetrics metrics, final String key, final String value) throws JMException {
+		this.metrics = metrics;
+		this.name = new ObjectName("org.elasticsearch.zookeeper:type=ZKMetrics," + key + "=" + ObjectName.quote(value));
+	}
+
+	/**
+	 * Registers the bean with the platform MBean server.
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+		} catch (JMException e) {
+			logger.warn("Can't register ZooKeeper metrics as " + this.name, e);
+		}
+	}
+
+	public void unregister() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+		} catch (JMException e) {
+			logger.debug("Can't unregister ZooKeeper metrics " + this.name, e);
+		}
+	}
+
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+		final Map<String, Object> values = this.metrics.toMap();
+		if (!values.containsKey(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+		final Map<String, Object> values = this.metrics.toMap();
+		final AttributeList list = new AttributeList();
+		for (final String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("ZooKeeper metrics are read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (final Entry<String, Object> entry : this.metrics.toMap().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false,
+					false));
+		}
+		return new MBeanInfo(getClass().getName(), "ZooKeeper discovery metrics", attributes.toArray(new MBeanAttributeInfo[attributes
+				.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
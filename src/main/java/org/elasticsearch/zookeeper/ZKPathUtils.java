@@ -1,37 +1,55 @@
 package org.elasticsearch.zookeeper;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
 
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.ZooKeeper;
-import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Utility class to list information about paths and their children.
+ * Utility class to list information about paths and their children. Trees are read with many asynchronous requests in
+ * flight at once and deleted in batches of multi() transactions, so that large trees don't take one round trip per node.
+ * All methods wait for ZooKeeper and must not be called on the ZooKeeper event thread.
  */
 public final class ZKPathUtils {
 	private ZKPathUtils() {}
 
-	private static final Logger	logger	= LoggerFactory.getLogger(ZKPathUtils.class);
+	private static final Logger		logger				= LoggerFactory.getLogger(ZKPathUtils.class);
+	private static final Charset	utf8				= Charset.forName("UTF-8");
+	private static final int		maxPendingRequests	= 1000;
+	private static final int		maxBatchOps			= 1000;
+	// stay well below the default jute.maxbuffer of 1MB per request
+	private static final int		maxBatchBytes		= 512 * 1024;
+	private static final int		deleteOpOverhead	= 16;
+	private static final int		maxDeleteAttempts	= 3;
 
 	/**
 	 * Returns a list of direct children for the given path.
 	 * 
 	 * @param zoo
 	 * @param path
-	 * @return
+	 * @return the children, or an empty list if the path doesn't exist
+	 * @throws KeeperException
+	 * @throws InterruptedException
 	 */
-	public static List<String> getChildren(final ZooKeeper zoo, final String path) {
+	public static List<String> getChildren(final ZooKeeper zoo, final String path) throws KeeperException, InterruptedException {
 		try {
 			return zoo.getChildren(path, false);
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (KeeperException.NoNodeException e) {
+			return new ArrayList<String>();
 		}
-		return new ArrayList<String>();
 	}
 
 	/**
@@ -39,19 +57,16 @@ public final class ZKPathUtils {
 	 * 
 	 * @param zoo
 	 * @param path
-	 * @return
+	 * @return the number of children, or -1 if the path doesn't exist
+	 * @throws KeeperException
+	 * @throws InterruptedException
 	 */
-	public static int getNumChildren(final ZooKeeper zoo, final String path) {
+	public static int getNumChildren(final ZooKeeper zoo, final String path) throws KeeperException, InterruptedException {
 		try {
 			return zoo.getChildren(path, false).size();
-		} catch (KeeperException ke) {
-			if (ke.code() == Code.NONODE) {
-				return -1;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (KeeperException.NoNodeException e) {
+			return -1;
 		}
-		return -1;
 	}
 
 	/**
@@ -59,8 +74,10 @@ public final class ZKPathUtils {
 	 * 
 	 * @see ZKPathUtils#listChildren(ZooKeeper, String, int)
 	 * @param zoo
+	 * @throws KeeperException
+	 * @throws InterruptedException
 	 */
-	public static void listChildren(final ZooKeeper zoo) {
+	public static void listChildren(final ZooKeeper zoo) throws KeeperException, InterruptedException {
 		listChildren(zoo, "/", 20);
 	}
 
@@ -72,19 +89,19 @@ public final class ZKPathUtils {
 	 * @param zoo
 	 * @param path
 	 * @param maxChildren
+	 * @throws KeeperException
+	 * @throws InterruptedException
 	 */
-	public static void listChildren(final ZooKeeper zoo, final String path, final int maxChildren) {
-		for (String child : getChildren(zoo, path)) {
-			if (child != null) {
-				final int childCount = getNumChildren(zoo, formatPath(path, child));
-				logger.debug("path {} has {} children", formatPath(path, child), childCount);
-				listFirstChildnames(zoo, formatPath(path, child), maxChildren);
-				if (childCount < maxChildren) {
-					listChildren(zoo, formatPath(path, child), maxChildren);
-				}
-				else {
-					logger.debug("too many children for path {} childCount {}", formatPath(path, child), childCount);
-				}
+	public static void listChildren(final ZooKeeper zoo, final String path, final int maxChildren) throws KeeperException,
+			InterruptedException {
+		for (final Entry<String, List<String>> node : walkTree(zoo, path, maxChildren).entrySet()) {
+			final List<String> children = node.getValue();
+			logger.debug("path {} has {} children", node.getKey(), children.size());
+			for (final String child : children.subList(0, Math.min(maxChildren, children.size()))) {
+				logger.debug("list first {} child names for path {}", maxChildren, formatPath(node.getKey(), child));
+			}
+			if (children.size() >= maxChildren) {
+				logger.debug("too many children for path {} childCount {}", node.getKey(), children.size());
 			}
 		}
 	}
@@ -95,15 +112,14 @@ public final class ZKPathUtils {
 	 * @param zoo
 	 * @param path
 	 * @param maxChildNames
+	 * @throws KeeperException
+	 * @throws InterruptedException
 	 */
-	public static void listFirstChildnames(final ZooKeeper zoo, final String path, final int maxChildNames) {
-		int count = 0;
-		for (String child : getChildren(zoo, path)) {
+	public static void listFirstChildnames(final ZooKeeper zoo, final String path, final int maxChildNames) throws KeeperException,
+			InterruptedException {
+		final List<String> children = getChildren(zoo, path);
+		for (final String child : children.subList(0, Math.min(maxChildNames, children.size()))) {
 			logger.debug("list first {} child names for path {}", maxChildNames, formatPath(path, child));
-			count++;
-			if (count > maxChildNames) {
-				break;
-			}
 		}
 	}
 
@@ -119,7 +135,27 @@ public final class ZKPathUtils {
 	}
 
 	/**
-	 * Recursively deletes a path and all its sub nodes.
+	 * Reads the children of the given path and of all nodes below it. The children of up to 1000 nodes are requested at
+	 * once, instead of waiting for each response before sending the next request. Nodes that are removed while the tree is
+	 * read are skipped.
+	 * 
+	 * @param zoo
+	 * @param path
+	 * @param maxChildren The children of nodes with at least this many children are not read
+	 * @return the children of every node that has been read, with every node following its parent, or an empty map if the
+	 *         path doesn't exist
+	 * @throws KeeperException the first error returned for any of the requests
+	 * @throws InterruptedException
+	 */
+	public static Map<String, List<String>> walkTree(final ZooKeeper zoo, final String path, final int maxChildren)
+			throws KeeperException, InterruptedException {
+		return new TreeWalk(zoo, maxChildren).run(path);
+	}
+
+	/**
+	 * Recursively deletes a path and all its sub nodes. The tree is read with {@link ZKPathUtils#walkTree(ZooKeeper, String,
+	 * int)} and deleted bottom up in multi() transactions of up to 1000 nodes. Nodes that are removed by somebody else in the
+	 * meantime are ignored, the tree is read again if nodes have been added to it.
 	 * 
 	 * @param zk
 	 * @param path
@@ -127,14 +163,120 @@ public final class ZKPathUtils {
 	 * @throws KeeperException
 	 */
 	public static void recursiveDelete(final ZooKeeper zk, final String path) throws InterruptedException, KeeperException {
-		final Stat childStat = zk.exists(path, false);
-		if (childStat == null) {
+		for (int attempt = 1;; attempt++) {
+			final List<String> nodes = new ArrayList<String>(walkTree(zk, path, Integer.MAX_VALUE).keySet());
+			Collections.reverse(nodes);
+			try {
+				deleteBatched(zk, nodes);
+				return;
+			} catch (KeeperException.NotEmptyException e) {
+				if (attempt >= maxDeleteAttempts) {
+					throw e;
+				}
+				logger.debug("Nodes have been added below {} while deleting it, reading the tree again", e.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Deletes the given nodes in order, in as few transactions as possible.
+	 */
+	private static void deleteBatched(final ZooKeeper zk, final List<String> paths) throws InterruptedException, KeeperException {
+		final List<Op> batch = new ArrayList<Op>();
+		int batchBytes = 0;
+		for (final String path : paths) {
+			final int bytes = path.getBytes(utf8).length + deleteOpOverhead;
+			if (!batch.isEmpty() && (batch.size() >= maxBatchOps || batchBytes + bytes > maxBatchBytes)) {
+				deleteBatch(zk, batch);
+				batch.clear();
+				batchBytes = 0;
+			}
+			batch.add(Op.delete(path, -1));
+			batchBytes += bytes;
+		}
+		if (!batch.isEmpty()) {
+			deleteBatch(zk, batch);
+		}
+	}
+
+	private static void deleteBatch(final ZooKeeper zk, final List<Op> batch) throws InterruptedException, KeeperException {
+		try {
+			zk.multi(batch);
+			logger.trace("Deleted {} nodes up to {}", batch.size(), batch.get(batch.size() - 1).getPath());
 			return;
+		} catch (KeeperException e) {
+			// a single failed delete rolls back the whole transaction, so the nodes are deleted one by one to find out which
+			logger.debug("Deleting {} nodes at once failed at {} ({}), deleting them one by one", new Object[] { batch.size(),
+					e.getPath(), e.code() });
 		}
-		for (final String child : zk.getChildren(path, false)) {
-			recursiveDelete(zk, formatPath(path, child));
+		for (final Op op : batch) {
+			try {
+				zk.delete(op.getPath(), -1);
+			} catch (KeeperException.NoNodeException e) {
+				// deleted by somebody else
+			}
+		}
+	}
+
+	/**
+	 * Reads a tree with asynchronous getChildren requests. Responses are delivered in order on the ZooKeeper event thread,
+	 * which sends the requests for the children of each response, so that a parent is always recorded before its children.
+	 */
+	private static final class TreeWalk implements ChildrenCallback {
+		private final ZooKeeper					zk;
+		private final int						maxChildren;
+		private final Map<String, List<String>>	tree	= new LinkedHashMap<String, List<String>>();
+		private final LinkedList<String>		queue	= new LinkedList<String>();
+		private final CountDownLatch			done	= new CountDownLatch(1);
+		private int								pending;
+		private KeeperException					error;
+
+		TreeWalk(final ZooKeeper zk, final int maxChildren) {
+			this.zk = zk;
+			this.maxChildren = maxChildren;
+		}
+
+		Map<String, List<String>> run(final String path) throws KeeperException, InterruptedException {
+			synchronized (this) {
+				this.queue.add(path);
+				sendRequests();
+			}
+			this.done.await();
+			synchronized (this) {
+				if (this.error != null) {
+					throw this.error;
+				}
+				return this.tree;
+			}
+		}
+
+		@Override
+		public synchronized void processResult(final int rc, final String path, final Object ctx, final List<String> children) {
+			this.pending--;
+			final Code code = Code.get(rc);
+			if (code == Code.OK) {
+				this.tree.put(path, children);
+				if (children.size() < this.maxChildren) {
+					for (final String child : children) {
+						this.queue.add(formatPath(path, child));
+					}
+				}
+			}
+			else if (code != Code.NONODE && this.error == null) {
+				// no more requests are sent, the walk ends once the pending ones have been answered
+				this.error = KeeperException.create(code, path);
+			}
+			sendRequests();
+		}
+
+		private void sendRequests() {
+			while (this.error == null && this.pending < maxPendingRequests && !this.queue.isEmpty()) {
+				this.pending++;
+				this.zk.getChildren(this.queue.removeFirst(), false, this, null);
+			}
+			if (this.pending == 0) {
+				this.done.countDown();
+			}
 		}
-		logger.trace("Deleting path {}", path);
-		zk.delete(path, -1);
 	}
 }
@@ -0,0 +1,67 @@
+package org.elasticsearch.zookeeper;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle to a ZooKeeper session that may be shared with other users in this JVM, see {@link ZKSessionRegistry}. Users
+ * must not close the connector or the dispatcher themselves, but {@link ZKSession#release()} the handle and remove all
+ * listeners they have added to the connector.
+ */
+public class ZKSession {
+	private final ZKSessionRegistry.Shared	shared;
+	private final AtomicBoolean				released	= new AtomicBoolean();
+
+	ZKSession(final ZKSessionRegistry.Shared shared) {
+		this.shared = shared;
+	}
+
+	public ZKConnector getConnector() {
+		return this.shared.connector;
+	}
+
+	public WatchDispatcher getDispatcher() {
+		return this.shared.dispatcher;
+	}
+
+	public String getHosts() {
+		return this.shared.hosts;
+	}
+
+	/**
+	 * Connects the session if nobody else has done so yet, otherwise waits for the connection somebody else has started.
+	 * Either way the connection is kept trying in the background if it couldn't be made in time.
+	 * 
+	 * @param timeout Time to wait in milliseconds
+	 * @return true if the session is connected
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @see ZKConnector#connect(String, long)
+	 */
+	public boolean connect(final long timeout) throws IOException, InterruptedException {
+		if (this.shared.claimConnect()) {
+			return this.shared.connector.connect(this.shared.hosts, timeout);
+		}
+		return this.shared.connector.awaitConnected(timeout);
+	}
+
+	/**
+	 * Exposes the metrics of the session through JMX. The metrics of a shared session combine all of its users, so there is
+	 * a single bean per session, named after its hosts.
+	 * 
+	 * @param nodeName Names the bean if the session isn't shared
+	 */
+	public void exposeMetrics(final String nodeName) {
+		ZKSessionRegistry.exposeMetrics(this.shared, nodeName);
+	}
+
+	/**
+	 * Gives up this handle. The session is closed once all handles to it have been released, releasing a handle twice has
+	 * no effect.
+	 */
+	public void release() {
+		if (this.released.compareAndSet(false, true)) {
+			ZKSessionRegistry.release(this.shared);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.elasticsearch.zookeeper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares ZooKeeper sessions between all users in this JVM that connect to the same hosts, so that several nodes running
+ * in one JVM don't each keep their own session, event thread and heartbeat. Every user acquires a {@link ZKSession} and
+ * releases it when done, the connector and its {@link WatchDispatcher} are closed once the last user has released them.
+ */
+public final class ZKSessionRegistry {
+	private ZKSessionRegistry() {}
+
+	private static final Logger					logger		= LoggerFactory.getLogger(ZKSessionRegistry.class);
+	private static final Map<String, Shared>	sessions	= new HashMap<String, Shared>();
+
+	/**
+	 * Returns a handle to the session for the given hosts, creating it if nobody in this JVM uses it yet. The session
+	 * timeout, debounce and jitter of the first user apply to all users of the session.
+	 * 
+	 * @param hosts Comma seperated connectString for ZooKeeper, used as the key of the session
+	 * @param sessionTimeout Time in milliseconds
+	 * @param debounce See {@link WatchDispatcher#WatchDispatcher(long, long)}
+	 * @param jitter See {@link WatchDispatcher#WatchDispatcher(long, long)}
+	 */
+	public static ZKSession acquire(final String hosts, final int sessionTimeout, final long debounce, final long jitter) {
+		return acquire(hosts, false, sessionTimeout, debounce, jitter);
+	}
+
+	/**
+	 * Returns a handle like {@link ZKSessionRegistry#acquire(String, int, long, long)}, to a session that may stay
+	 * connected to a server without quorum if canBeReadOnly is set. Sessions that can be read-only are never shared with
+	 * sessions that can't.
+	 */
+	public static synchronized ZKSession acquire(final String hosts, final boolean canBeReadOnly, final int sessionTimeout,
+			final long debounce, final long jitter) {
+		final String key = canBeReadOnly ? "read-only:" + hosts : hosts;
+		Shared shared = sessions.get(key);
+		if (shared == null) {
+			shared = new Shared(key, hosts, canBeReadOnly, sessionTimeout, debounce, jitter);
+			sessions.put(key, shared);
+		}
+		else if (shared.sessionTimeout != sessionTimeout) {
+			logger.warn("Zookeeper: sharing the session to {} with a timeout of {}ms instead of {}ms", new Object[] { hosts,
+					shared.sessionTimeout, sessionTimeout });
+		}
+		shared.references++;
+		logger.debug("Zookeeper: session to {} is used {} times", hosts, shared.references);
+		return new ZKSession(shared);
+	}
+
+	/**
+	 * Returns a handle to a new session that is not shared with anybody else.
+	 * 
+	 * @see ZKSessionRegistry#acquire(String, boolean, int, long, long)
+	 */
+	public static ZKSession create(final String hosts, final boolean canBeReadOnly, final int sessionTimeout, final long debounce,
+			final long jitter) {
+		final Shared shared = new Shared(null, hosts, canBeReadOnly, sessionTimeout, debounce, jitter);
+		shared.references++;
+		return new ZKSession(shared);
+	}
+
+	static void release(final Shared shared) {
+		final ZKMetricsMBean metricsBean;
+		synchronized (ZKSessionRegistry.class) {
+			if (--shared.references > 0) {
+				logger.debug("Zookeeper: session to {} is used {} times", shared.hosts, shared.references);
+				return;
+			}
+			if (shared.key != null) {
+				sessions.remove(shared.key);
+			}
+			metricsBean = shared.metricsBean;
+			shared.metricsBean = null;
+		}
+		if (metricsBean != null) {
+			metricsBean.unregister();
+		}
+		// closing waits for the server, which must not block other nodes acquiring their sessions
+		shared.dispatcher.close();
+		try {
+			shared.connector.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Exposes the metrics of the session through JMX, unless that has been done already. A shared session is named after
+	 * its hosts, as the metrics of all users of the session are combined. The bean is removed once the session is closed.
+	 * 
+	 * @param nodeName Names the bean of a session that isn't shared
+	 */
+	static synchronized void exposeMetrics(final Shared shared, final String nodeName) {
+		if (shared.metricsBean != null || shared.references <= 0) {
+			return;
+		}
+		try {
+			shared.metricsBean = shared.key != null ? new ZKMetricsMBean(shared.connector.getMetrics(), "session", shared.key)
+					: new ZKMetricsMBean(shared.connector.getMetrics(), "node", nodeName);
+			shared.metricsBean.register();
+		} catch (JMException e) {
+			logger.warn("Zookeeper: can't expose the metrics of the session to " + shared.hosts + " through JMX", e);
+		}
+	}
+
+	/**
+	 * A session together with the number of handles that have not been released yet.
+	 */
+	static final class Shared {
+		final String			key;
+		final String			hosts;
+		final int				sessionTimeout;
+		final ZKConnector		connector;
+		final WatchDispatcher	dispatcher;
+		int						references;
+		ZKMetricsMBean			metricsBean;
+		private boolean			connecting;
+
+		/**
+		 * @param key Key in the registry, or null if the session isn't shared
+		 */
+		Shared(final String key, final String hosts, final boolean canBeReadOnly, final int sessionTimeout, final long debounce,
+				final long jitter) {
+			this.key = key;
+			this.hosts = hosts;
+			this.sessionTimeout = sessionTimeout;
+			this.connector = new ZKConnector(sessionTimeout, canBeReadOnly);
+			this.dispatcher = new WatchDispatcher(debounce, jitter);
+		}
+
+		/**
+		 * Returns true for the first caller only, who has to connect the session.
+		 */
+		synchronized boolean claimConnect() {
+			if (this.connecting) {
+				return false;
+			}
+			this.connecting = true;
+			return true;
+		}
+	}
+}
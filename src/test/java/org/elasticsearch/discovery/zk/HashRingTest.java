@@ -0,0 +1,104 @@
+package org.elasticsearch.discovery.zk;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class HashRingTest {
+	private static final int	virtualNodes	= 16;
+
+	@Test
+	public void neighboursDontDependOnInsertionOrder() {
+		final List<String> members = members(20);
+		final HashRing ring = ring(members);
+		final List<String> reversed = new ArrayList<String>(members);
+		Collections.reverse(reversed);
+		final HashRing reversedRing = ring(reversed);
+
+		for (final String member : members) {
+			final Set<String> others = others(members, member);
+			assertEquals(new ArrayList<String>(ring.neighbours(member, 3, others)),
+					new ArrayList<String>(reversedRing.neighbours(member, 3, others)));
+		}
+	}
+
+	@Test
+	public void neighboursAreLimitedToAllowedMembers() {
+		final List<String> members = members(20);
+		final HashRing ring = ring(members);
+
+		for (final String member : members) {
+			final Set<String> others = others(members, member);
+			final Set<String> neighbours = ring.neighbours(member, 3, others);
+			assertEquals(neighbours.size(), 3);
+			assertTrue(others.containsAll(neighbours));
+		}
+		assertEquals(ring.neighbours("node-0", 3, Collections.singleton("node-1")), Collections.singleton("node-1"));
+		assertTrue(ring.neighbours("node-0", 0, others(members, "node-0")).isEmpty());
+		assertTrue(new HashRing(virtualNodes).neighbours("node-0", 3, others(members, "node-0")).isEmpty());
+	}
+
+	@Test
+	public void joiningMemberOnlyDisplacesNeighbours() {
+		final List<String> members = members(20);
+		final HashRing ring = ring(members);
+		final List<Set<String>> before = new ArrayList<Set<String>>();
+		for (final String member : members) {
+			before.add(ring.neighbours(member, 3, others(members, member)));
+		}
+
+		ring.add("node-new");
+		final List<String> joined = new ArrayList<String>(members);
+		joined.add("node-new");
+		for (int i = 0; i < members.size(); i++) {
+			final Set<String> after = new HashSet<String>(ring.neighbours(members.get(i), 3, others(joined, members.get(i))));
+			after.remove("node-new");
+			assertTrue(before.get(i).containsAll(after), members.get(i) + ": " + before.get(i) + " -> " + after);
+		}
+	}
+
+	@Test
+	public void removedMemberIsNoNeighbour() {
+		final List<String> members = members(20);
+		final HashRing ring = ring(members);
+		assertTrue(ring.containsAll(members));
+		assertEquals(ring.size(), 20);
+
+		ring.remove("node-7");
+		assertFalse(ring.containsAll(members));
+		assertEquals(ring.size(), 19);
+		for (final String member : members) {
+			assertFalse(ring.neighbours(member, 19, new HashSet<String>(members)).contains("node-7"));
+		}
+	}
+
+	private static List<String> members(final int count) {
+		final List<String> members = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			members.add("node-" + i);
+		}
+		return members;
+	}
+
+	private static HashRing ring(final List<String> members) {
+		final HashRing ring = new HashRing(virtualNodes);
+		for (final String member : members) {
+			ring.add(member);
+		}
+		return ring;
+	}
+
+	private static Set<String> others(final List<String> members, final String member) {
+		final Set<String> others = new HashSet<String>(members);
+		others.remove(member);
+		return others;
+	}
+}
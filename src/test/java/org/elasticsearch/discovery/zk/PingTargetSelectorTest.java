@@ -0,0 +1,126 @@
+package org.elasticsearch.discovery.zk;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasticsearch.discovery.zk.PingTargetSelector.Mode;
+import org.elasticsearch.zookeeper.MemberPayload;
+import org.testng.annotations.Test;
+
+public class PingTargetSelectorTest {
+	private static final int	MASTER		= MemberPayload.ROLE_MASTER;
+	private static final int	DATA		= MemberPayload.ROLE_DATA;
+	private static final int	BOTH		= MemberPayload.ROLE_MASTER | MemberPayload.ROLE_DATA;
+
+	@Test
+	public void masterEligibleOnly() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		members.put("master", payload("master", MASTER, ""));
+		members.put("both", payload("both", BOTH, ""));
+		members.put("data", payload("data", DATA, ""));
+		members.put("legacy", MemberPayload.legacy("legacy:9300"));
+
+		final List<String> targets = new PingTargetSelector(Mode.MASTER_ELIGIBLE, 0, "", 0, new Random(1)).select(members, "local");
+		assertEquals(new HashSet<String>(targets), new HashSet<String>(Arrays.asList("master", "both", "legacy")));
+	}
+
+	@Test
+	public void everybodyWithoutMasterEligibleMembers() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		members.put("data-1", payload("data-1", DATA, ""));
+		members.put("data-2", payload("data-2", DATA, ""));
+
+		final List<String> targets = new PingTargetSelector(Mode.MASTER_ELIGIBLE, 0, "", 0, new Random(1)).select(members, "local");
+		assertEquals(new HashSet<String>(targets), members.keySet());
+	}
+
+	@Test
+	public void sampleIsDeterministicForTheSameSeed() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		members.put("master", payload("master", MASTER, ""));
+		for (int i = 0; i < 10; i++) {
+			members.put("data-" + i, payload("data-" + i, DATA, ""));
+		}
+
+		final List<String> targets = new PingTargetSelector(Mode.MASTER_ELIGIBLE_SAMPLE, 3, "", 0, new Random(42)).select(members,
+				"local");
+		assertEquals(targets.size(), 4);
+		assertEquals(targets.get(0), "master");
+		assertEquals(new PingTargetSelector(Mode.MASTER_ELIGIBLE_SAMPLE, 3, "", 0, new Random(42)).select(members, "local"), targets);
+	}
+
+	@Test
+	public void localZoneFirstAndCapKeepsMasters() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		members.put("c-data", payload("c-data", DATA, "c"));
+		members.put("b-data-1", payload("b-data-1", DATA, "b"));
+		members.put("b-master-1", payload("b-master-1", MASTER, "b"));
+		members.put("b-master-2", payload("b-master-2", BOTH, "b"));
+		members.put("b-master-3", payload("b-master-3", MASTER, "b"));
+		members.put("a-data-2", payload("a-data-2", DATA, "a"));
+		members.put("a-data-1", payload("a-data-1", DATA, "a"));
+		members.put("a-master", payload("a-master", MASTER, "a"));
+		members.put("a-data-3", payload("a-data-3", DATA, "a"));
+
+		final List<String> expected = Arrays.asList("a-master", "a-data-1", "b-master-1", "b-master-2", "b-master-3", "c-data");
+		assertEquals(new PingTargetSelector(Mode.ALL, 0, "a", 2, new Random(1)).select(members, "local"), expected);
+
+		final List<String> names = new ArrayList<String>(members.keySet());
+		Collections.reverse(names);
+		final Map<String, MemberPayload> reversed = new LinkedHashMap<String, MemberPayload>();
+		for (final String name : names) {
+			reversed.put(name, members.get(name));
+		}
+		assertEquals(new PingTargetSelector(Mode.ALL, 0, "a", 2, new Random(1)).select(reversed, "local"), expected);
+	}
+
+	@Test
+	public void otherZonesAreOrderedByName() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		members.put("c-data", payload("c-data", DATA, "c"));
+		members.put("a-data", payload("a-data", DATA, "a"));
+		members.put("b-data", payload("b-data", DATA, "b"));
+
+		assertEquals(new PingTargetSelector(Mode.ALL, 0, "b", 0, new Random(1)).select(members, "local"),
+				Arrays.asList("b-data", "a-data", "c-data"));
+	}
+
+	@Test
+	public void ringPingsDedicatedMastersAndNeighbours() {
+		final Map<String, MemberPayload> members = new LinkedHashMap<String, MemberPayload>();
+		for (int i = 0; i < 3; i++) {
+			members.put("master-" + i, payload("master-" + i, MASTER, ""));
+		}
+		for (int i = 0; i < 30; i++) {
+			members.put("node-" + i, payload("node-" + i, BOTH, ""));
+		}
+		final PingTargetSelector selector = new PingTargetSelector(Mode.RING, 4, "", 0, new Random(1));
+		for (final String member : members.keySet()) {
+			selector.memberAdded(member);
+		}
+		selector.memberAdded("node-local");
+
+		final List<String> targets = selector.select(members, "node-local");
+		assertEquals(targets.size(), 7);
+		assertTrue(targets.containsAll(Arrays.asList("master-0", "master-1", "master-2")));
+		assertEquals(new HashSet<String>(targets).size(), 7);
+		assertEquals(selector.select(members, "node-local"), targets);
+
+		// a selector that hasn't been told about the members builds the same ring
+		final List<String> unreported = new PingTargetSelector(Mode.RING, 4, "", 0, new Random(2)).select(members, "node-local");
+		assertEquals(new HashSet<String>(unreported), new HashSet<String>(targets));
+	}
+
+	private static MemberPayload payload(final String name, final int roles, final String zone) {
+		return MemberPayload.create(Collections.singletonList(name + ":9300"), name, roles, zone, 0);
+	}
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.zookeeper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+public class MemberPayloadTest {
+	@Test
+	public void roundTrip() {
+		final MemberPayload payload = MemberPayload.create(Arrays.asList("10.0.0.1:9300", "[::1]:9301"), "node-1",
+				MemberPayload.ROLE_MASTER | MemberPayload.ROLE_DATA, "eu-west-1a", 1361000000123L);
+		final MemberPayload decoded = MemberPayload.CODEC.decode(MemberPayload.CODEC.encode(payload));
+
+		assertFalse(decoded.isLegacy());
+		assertEquals(decoded.getAddresses(), Arrays.asList("10.0.0.1:9300", "[::1]:9301"));
+		assertEquals(decoded.getNodeId(), "node-1");
+		assertEquals(decoded.getZone(), "eu-west-1a");
+		assertEquals(decoded.getRoles(), MemberPayload.ROLE_MASTER | MemberPayload.ROLE_DATA);
+		assertTrue(decoded.hasRoles());
+		assertEquals(decoded.getTimestamp(), 1361000000123L);
+		assertEquals(decoded, payload);
+	}
+
+	@Test
+	public void roundTripWithoutAddressesAndUnknownFields() {
+		final MemberPayload decoded = MemberPayload.wrap(MemberPayload.create(Collections.<String> emptyList(), null,
+				MemberPayload.UNKNOWN_ROLES, null, -1).getData());
+
+		assertFalse(decoded.isLegacy());
+		assertTrue(decoded.getAddresses().isEmpty());
+		assertEquals(decoded.getNodeId(), "");
+		assertEquals(decoded.getZone(), "");
+		assertFalse(decoded.hasRoles());
+		assertEquals(decoded.getTimestamp(), -1);
+	}
+
+	@Test
+	public void legacyString() throws Exception {
+		final MemberPayload decoded = MemberPayload.wrap("10.0.0.1:9300".getBytes("UTF-8"));
+
+		assertTrue(decoded.isLegacy());
+		assertEquals(decoded.getAddresses(), Collections.singletonList("10.0.0.1:9300"));
+		assertEquals(decoded.getNodeId(), "");
+		assertEquals(decoded.getZone(), "");
+		assertEquals(decoded.getRoles(), MemberPayload.UNKNOWN_ROLES);
+		assertFalse(decoded.hasRoles());
+		assertEquals(decoded.getTimestamp(), 0);
+		assertEquals(decoded, MemberPayload.legacy("10.0.0.1:9300"));
+		assertEquals(decoded.toString(), "10.0.0.1:9300");
+	}
+
+	@Test
+	public void emptyLegacyString() {
+		final MemberPayload decoded = MemberPayload.wrap(new byte[0]);
+
+		assertTrue(decoded.isLegacy());
+		assertEquals(decoded.getAddresses(), Collections.singletonList(""));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void truncated() {
+		final byte[] data = MemberPayload.create(Collections.singletonList("10.0.0.1:9300"), "node-1", MemberPayload.ROLE_DATA,
+				"", 0).getData();
+		MemberPayload.wrap(Arrays.copyOf(data, data.length - 1));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void unknownVersion() {
+		final byte[] data = MemberPayload.create(Collections.singletonList("10.0.0.1:9300"), "node-1", MemberPayload.ROLE_DATA,
+				"", 0).getData();
+		data[1] = 2;
+		MemberPayload.wrap(data);
+	}
+}